@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+import ij.ImagePlus;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+
+/**
+ * Computes the region of a source slice that the output of one frame touches,
+ * so that only the Z-planes of this region are read from the image, output
+ * pixels whose kernel falls outside of its XY bounds are not interpolated, and
+ * frames whose output falls outside of the image are skipped.
+ */
+public final class BandRegion
+{
+
+	private BandRegion()
+	{}
+
+	/**
+	 * Returns the bounding box of the specified 3D points expanded by the
+	 * specified margins and clipped to the bounds of the image.
+	 * 
+	 * @param xs
+	 *            the X coordinates of the points, in pixels.
+	 * @param ys
+	 *            the Y coordinates of the points, in pixels.
+	 * @param zs
+	 *            the Z coordinates of the points, in pixels. If
+	 *            <code>null</code>, the box spans all the Z-slices.
+	 * @param margin
+	 *            the margin added on each side in X and Y, in pixels.
+	 * @param zMargin
+	 *            the margin added on each side in Z, in pixels.
+	 * @param imp
+	 *            the source image.
+	 * @return the region, with 2 or 3 dimensions like the slices of the
+	 *         image, or <code>null</code> if it does not intersect the
+	 *         image.
+	 */
+	public static Interval of( final double[] xs, final double[] ys, final double[] zs, final int margin, final int zMargin, final ImagePlus imp )
+	{
+		double xmin = Double.POSITIVE_INFINITY;
+		double xmax = Double.NEGATIVE_INFINITY;
+		double ymin = Double.POSITIVE_INFINITY;
+		double ymax = Double.NEGATIVE_INFINITY;
+		for ( int i = 0; i < xs.length; i++ )
+		{
+			xmin = Math.min( xmin, xs[ i ] );
+			xmax = Math.max( xmax, xs[ i ] );
+			ymin = Math.min( ymin, ys[ i ] );
+			ymax = Math.max( ymax, ys[ i ] );
+		}
+
+		final long x0 = Math.max( 0, ( long ) Math.floor( xmin ) - margin );
+		final long x1 = Math.min( imp.getWidth() - 1, ( long ) Math.ceil( xmax ) + margin );
+		final long y0 = Math.max( 0, ( long ) Math.floor( ymin ) - margin );
+		final long y1 = Math.min( imp.getHeight() - 1, ( long ) Math.ceil( ymax ) + margin );
+		if ( x1 < x0 || y1 < y0 )
+			return null;
+
+		if ( imp.getNSlices() > 1 )
+		{
+			long z0 = 0;
+			long z1 = imp.getNSlices() - 1;
+			if ( zs != null )
+			{
+				double zmin = Double.POSITIVE_INFINITY;
+				double zmax = Double.NEGATIVE_INFINITY;
+				for ( final double z : zs )
+				{
+					zmin = Math.min( zmin, z );
+					zmax = Math.max( zmax, z );
+				}
+				z0 = Math.max( z0, ( long ) Math.floor( zmin ) - zMargin );
+				z1 = Math.min( z1, ( long ) Math.ceil( zmax ) + zMargin );
+				if ( z1 < z0 )
+					return null;
+			}
+			return new FinalInterval( new long[] { x0, y0, z0 }, new long[] { x1, y1, z1 } );
+		}
+		return new FinalInterval( new long[] { x0, y0 }, new long[] { x1, y1 } );
+	}
+}
@@ -51,13 +51,38 @@ public class KymographAction extends AbstractTMAction
 			+ "such a kymograph, create two tracks, one for each extremity of the structure "
 			+ "and use this action."
 			+ "<p>"
+			+ "Programmatically, the kymograph can also follow a polyline or a spline "
+			+ "through the spots of more than two tracks, given in order. "
+			+ "<p>"
 			+ "The extraction works in 2D and in 3D. The <i>thickness</i> parameter lets "
 			+ "you configure how many pixels around the lined joining the two tracks "
-			+ "should be projected. The <i>projection method</i> specifies how to project "
-			+ "them. Because the line in each time-point might have a different length, "
+			+ "should be projected. In 3D, the <i>band shape</i> sets whether they are "
+			+ "taken in the XY plane only, in a cylinder around the line, or in a "
+			+ "rectangular cross-section whose <i>band depth</i> you can specify. "
+			+ "The <i>projection method</i> specifies how to project "
+			+ "them: maximum, mean, sum, median or any percentile. Because the line in "
+			+ "each time-point might have a different length, "
 			+ "we must specify how to align them, which is done with the <i>alignment</i> "
 			+ "parameter. "
 			+ "<p>"
+			+ "By default, the pixels on the line are sampled, so the number of samples "
+			+ "depends on the angle of the line. With the <i>interpolated</i> sampling "
+			+ "method, the line is sampled with linear interpolation at a constant "
+			+ "physical step, which you can specify. "
+			+ "<p>"
+			+ "For very long movies, the <i>disk-cached</i> output mode stores the "
+			+ "result in a cell image cached on disk instead of memory, and shows it "
+			+ "as a virtual stack. With the <i>on demand</i> output mode, the kymograph "
+			+ "is shown immediately, and its rows are computed as they are displayed. "
+			+ "<p>"
+			+ "Registered images resample the movie around the two tracks, aligned on "
+			+ "the line joining them. For 3D stacks, they are slabs whose third axis "
+			+ "is Z or the normal to the line, and whose depth is the <i>slab depth</i>. "
+			+ "<p>"
+			+ "Kymographs follow the edits of the model: editing the spots or the links "
+			+ "of their tracks updates the rows of the time-points that changed, in "
+			+ "place and in the background. "
+			+ "<p>"
 			+ "If spots are missing in the designated tracks, they will produce a black "
 			+ "line in the final kymograph. "
 			+ "</html>";
@@ -0,0 +1,56 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+public enum KymographBandShape
+{
+
+	/**
+	 * The band around the line extends only in the XY plane, along the
+	 * normal of the line in this plane.
+	 */
+	PLANAR( "Planar" ),
+	/**
+	 * In 3D, the band is a cylinder around the line, whose diameter is the
+	 * thickness. Same as {@link #PLANAR} in 2D.
+	 */
+	CYLINDER( "Cylinder" ),
+	/**
+	 * In 3D, the band has a rectangular cross-section: the thickness along the
+	 * normal of the line in the XY plane, and the band depth along the normal
+	 * perpendicular to it. Same as {@link #PLANAR} in 2D.
+	 */
+	RECTANGLE( "Rectangle" );
+
+	private final String name;
+
+	KymographBandShape( final String name )
+	{
+		this.name = name;
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+}
@@ -0,0 +1,202 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import ij.ImagePlus;
+import net.imglib2.algorithm.MultiThreaded;
+import net.imglib2.algorithm.OutputAlgorithm;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Creates the kymographs of many track pairs over the same movie. The source
+ * image is read only once: each worker thread visits a time-point, and
+ * samples all the kymographs that include it from the same planes before
+ * moving to the next one.
+ * <p>
+ * The kymographs are always computed entirely: the
+ * {@link KymographOutputMode#ON_DEMAND} output mode is rejected.
+ * <p>
+ * This class does not depend on any UI and can be used headlessly.
+ */
+public class KymographBatchCreator implements OutputAlgorithm< List< ImagePlus > >, MultiThreaded
+{
+
+	private static final String BASE_ERROR_MESSAGE = "[KymographBatchCreator] ";
+
+	private final TrackFrameIndex index;
+
+	private final ImagePlus imp;
+
+	private final List< KymographCreationParams > paramsList;
+
+	private List< ImagePlus > output;
+
+	private String errorMessage;
+
+	private int numThreads;
+
+	public KymographBatchCreator( final TrackFrameIndex index, final ImagePlus imp, final List< KymographCreationParams > paramsList )
+	{
+		this.index = index;
+		this.imp = imp;
+		this.paramsList = paramsList;
+		setNumThreads();
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( paramsList.isEmpty() )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "No kymograph to create.";
+			return false;
+		}
+		for ( final KymographCreationParams params : paramsList )
+		{
+			if ( params.outputMode == KymographOutputMode.ON_DEMAND )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + "Kymographs created in batch cannot be computed on demand.";
+				return false;
+			}
+			final KymographCreator creator = new KymographCreator( index, imp, params );
+			if ( !creator.checkInput() )
+			{
+				errorMessage = creator.getErrorMessage();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		/*
+		 * Prepare one output per track pair.
+		 */
+
+		final List< KymographCreator > creators = new ArrayList<>( paramsList.size() );
+		int minFrame = Integer.MAX_VALUE;
+		int maxFrame = Integer.MIN_VALUE;
+		for ( final KymographCreationParams params : paramsList )
+		{
+			final KymographCreator creator = new KymographCreator( index, imp, params );
+			if ( !creator.prepare() )
+			{
+				errorMessage = creator.getErrorMessage();
+				return false;
+			}
+			creators.add( creator );
+			minFrame = Math.min( minFrame, creator.getFirstFrame() );
+			maxFrame = Math.max( maxFrame, creator.getLastFrame() );
+		}
+
+		/*
+		 * Sample all kymographs in one pass over the time-points.
+		 */
+
+		if ( !extract( creators, minFrame, maxFrame ) )
+			return false;
+
+		output = new ArrayList<>( creators.size() );
+		for ( final KymographCreator creator : creators )
+			output.add( creator.getResult() );
+		return true;
+	}
+
+	/**
+	 * Visits each time-point once, and extracts the rows of all the
+	 * kymographs that include it. The row extractors of a worker thread share
+	 * the same accessors on the source image, so the planes of a time-point
+	 * are fetched once for all the kymographs.
+	 */
+	private < T extends RealType< T > & NativeType< T > > boolean extract( final List< KymographCreator > creators, final int minFrame, final int maxFrame )
+	{
+		final SliceViews< T > views = new SliceViews<>( imp, numThreads );
+		final ThreadLocal< List< KymographCreator.RowExtractor< T > > > extractors = ThreadLocal.withInitial( () -> {
+			final SliceViews< T >.Accessors accessors = views.accessors();
+			final List< KymographCreator.RowExtractor< T > > list = new ArrayList<>( creators.size() );
+			for ( final KymographCreator creator : creators )
+				list.add( creator.rowExtractor( accessors ) );
+			return list;
+		} );
+		final ForkJoinPool pool = new ForkJoinPool( numThreads );
+		try
+		{
+			pool.submit( () -> IntStream.rangeClosed( minFrame, maxFrame ).parallel().forEach( tp -> {
+				for ( final KymographCreator.RowExtractor< T > extractor : extractors.get() )
+					extractor.extract( tp );
+			} ) ).get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Problem extracting intensities: " + e.getMessage();
+			return false;
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+		return true;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	/**
+	 * Returns the kymographs, in the order of the parameters they were created
+	 * with.
+	 */
+	@Override
+	public List< ImagePlus > getResult()
+	{
+		return output;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+}
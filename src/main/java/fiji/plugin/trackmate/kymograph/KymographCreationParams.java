@@ -21,6 +21,11 @@
  */
 package fiji.plugin.trackmate.kymograph;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 public class KymographCreationParams
 {
 
@@ -28,24 +33,127 @@ public class KymographCreationParams
 
 	public final Integer trackID2;
 
+	/**
+	 * The IDs of the tracks the kymograph path goes through, in order. The
+	 * first one is {@link #trackID1} and the last one {@link #trackID2}. With
+	 * more than two tracks, the kymograph follows a polyline or a spline
+	 * through their spots.
+	 */
+	public final List< Integer > trackIDs;
+
+	/**
+	 * Whether a path through more than two tracks is a Catmull-Rom spline
+	 * rather than a polyline.
+	 */
+	public final boolean spline;
+
 	public final int thickness;
 
+	/**
+	 * The shape of the band around the line, in 3D.
+	 */
+	public final KymographBandShape bandShape;
+
+	/**
+	 * The extent of the band perpendicular to the thickness, in pixels. Only
+	 * used with {@link KymographBandShape#RECTANGLE} in 3D.
+	 */
+	public final int bandDepth;
+
 	public final KymographProjectionMethod projectionMethod;
 
+	/**
+	 * The percentile to project, from 0 to 100. Only used with
+	 * {@link KymographProjectionMethod#PERCENTILE}.
+	 */
+	public final double percentile;
+
 	public final KymographAlignment alignment;
 
+	public final KymographSamplingMethod samplingMethod;
+
+	/**
+	 * The step between two samples along the line, in physical units. Only
+	 * used with {@link KymographSamplingMethod#INTERPOLATED}. If not strictly
+	 * positive, the pixel size is used.
+	 */
+	public final double samplingStep;
+
+	/**
+	 * The interpolation used to resample registered images.
+	 */
+	public final KymographInterpolation interpolation;
+
+	/**
+	 * The third axis of the slab resampled for registered images of 3D
+	 * stacks. The slab is {@link #slabDepth} pixels deep along this axis.
+	 */
+	public final KymographSlabAxis slabAxis;
+
+	/**
+	 * The depth of the slab resampled for registered images of 3D stacks, in
+	 * pixels along {@link #slabAxis}.
+	 */
+	public final int slabDepth;
+
+	public final KymographOutputMode outputMode;
+
+	/**
+	 * The size of the cells of the output image, in pixels along X and Y.
+	 * Only used with {@link KymographOutputMode#DISK_CACHED}. Not exposed in
+	 * the GUI, it can only be set with the builder.
+	 */
+	public final int cellSize;
+
+	/**
+	 * The maximal number of cells of the output image kept in memory. With
+	 * {@link KymographOutputMode#DISK_CACHED}, if not strictly positive, cells
+	 * are kept with soft references and evicted when memory runs low. With
+	 * {@link KymographOutputMode#ON_DEMAND}, the cells are the rows of the
+	 * kymograph, and the least recently used are evicted; if not strictly
+	 * positive, a default size is used. Not exposed in the GUI, it can only be
+	 * set with the builder.
+	 */
+	public final int maxCachedCells;
+
 	private KymographCreationParams(
 			final Integer trackID1,
 			final Integer trackID2,
+			final List< Integer > trackIDs,
+			final boolean spline,
 			final int thickness,
+			final KymographBandShape bandShape,
+			final int bandDepth,
 			final KymographProjectionMethod projectionMethod,
-			final KymographAlignment alignment )
+			final double percentile,
+			final KymographAlignment alignment,
+			final KymographSamplingMethod samplingMethod,
+			final double samplingStep,
+			final KymographInterpolation interpolation,
+			final KymographSlabAxis slabAxis,
+			final int slabDepth,
+			final KymographOutputMode outputMode,
+			final int cellSize,
+			final int maxCachedCells )
 	{
 		this.trackID1 = trackID1;
 		this.trackID2 = trackID2;
+		this.trackIDs = trackIDs;
+		this.spline = spline;
 		this.thickness = thickness;
+		this.bandShape = bandShape;
+		this.bandDepth = bandDepth;
 		this.projectionMethod = projectionMethod;
+		this.percentile = percentile;
 		this.alignment = alignment;
+		this.samplingMethod = samplingMethod;
+		this.samplingStep = samplingStep;
+		this.interpolation = interpolation;
+		this.slabAxis = slabAxis;
+		this.slabDepth = slabDepth;
+		this.outputMode = outputMode;
+		this.cellSize = cellSize;
+		this.maxCachedCells = maxCachedCells;
 	}
 
 	@Override
@@ -54,36 +162,135 @@ public class KymographCreationParams
 		final StringBuilder str = new StringBuilder( super.toString() );
 		str.append( "\n - track ID 1: " + trackID1 );
 		str.append( "\n - track ID 2: " + trackID2 );
+		if ( isPath() )
+		{
+			str.append( "\n - track IDs:  " + trackIDs );
+			str.append( "\n - spline:     " + spline );
+		}
 		str.append( "\n - thickness:  " + thickness );
+		str.append( "\n - band shape: " + bandShape );
+		if ( bandShape == KymographBandShape.RECTANGLE )
+			str.append( "\n - band depth: " + bandDepth );
 		str.append( "\n - projection: " + projectionMethod );
+		if ( projectionMethod == KymographProjectionMethod.PERCENTILE )
+			str.append( "\n - percentile: " + percentile );
 		str.append( "\n - alignment:  " + alignment );
+		str.append( "\n - sampling:   " + samplingMethod );
+		if ( samplingMethod == KymographSamplingMethod.INTERPOLATED )
+			str.append( "\n - step:       " + samplingStep );
+		str.append( "\n - interpolation: " + interpolation );
+		str.append( "\n - slab axis:  " + slabAxis );
+		str.append( "\n - slab depth: " + slabDepth );
+		str.append( "\n - output:     " + outputMode );
+		if ( outputMode == KymographOutputMode.DISK_CACHED )
+		{
+			str.append( "\n - cell size:  " + cellSize );
+			str.append( "\n - max cells:  " + ( maxCachedCells > 0 ? String.valueOf( maxCachedCells ) : "unbounded" ) );
+		}
+		else if ( outputMode == KymographOutputMode.ON_DEMAND )
+		{
+			str.append( "\n - max rows:   " + ( maxCachedCells > 0 ? String.valueOf( maxCachedCells ) : "default" ) );
+		}
 		return str.toString();
 	}
 
+	/**
+	 * Returns <code>true</code> if the kymograph goes through more than two
+	 * tracks.
+	 */
+	public boolean isPath()
+	{
+		return trackIDs.size() > 2;
+	}
+
 	public static final class Builder
 	{
 		private Integer trackID1;
 
 		private Integer trackID2;
 
+		private List< Integer > trackIDs;
+
+		private boolean spline = false;
+
 		private int thickness = 5;
 
+		private KymographBandShape bandShape = KymographBandShape.PLANAR;
+
+		private int bandDepth = 5;
+
 		private KymographProjectionMethod projectionMethod = KymographProjectionMethod.MIP;
 
+		private double percentile = 50.;
+
 		private KymographAlignment alignment = KymographAlignment.CENTER;
 
+		private KymographSamplingMethod samplingMethod = KymographSamplingMethod.PIXELS;
+
+		private double samplingStep = -1.;
+
+		private KymographInterpolation interpolation = KymographInterpolation.LINEAR;
+
+		private KymographSlabAxis slabAxis = KymographSlabAxis.Z;
+
+		private int slabDepth = 5;
+
+		private KymographOutputMode outputMode = KymographOutputMode.IN_MEMORY;
+
+		private int cellSize = 256;
+
+		private int maxCachedCells = -1;
+
 		private Builder()
 		{}
 
+		/**
+		 * Sets the ID of the first track. If a list of tracks was set, this
+		 * replaces its first element.
+		 */
 		public Builder trackID1( final Integer trackID1 )
 		{
 			this.trackID1 = trackID1;
+			if ( trackIDs != null && !trackIDs.isEmpty() )
+				trackIDs.set( 0, trackID1 );
 			return this;
 		}
 
+		/**
+		 * Sets the ID of the second track. If a list of tracks was set, this
+		 * replaces its last element.
+		 */
 		public Builder trackID2( final Integer trackID2 )
 		{
 			this.trackID2 = trackID2;
+			if ( trackIDs != null && !trackIDs.isEmpty() )
+				trackIDs.set( trackIDs.size() - 1, trackID2 );
+			return this;
+		}
+
+		/**
+		 * Sets the ordered list of the tracks the kymograph goes through. This
+		 * also sets the first and second track IDs to the first and last
+		 * elements of the list.
+		 * <p>
+		 * With more than two tracks, the kymograph is sampled along a path, that
+		 * requires the {@link KymographSamplingMethod#INTERPOLATED} sampling
+		 * method and the {@link KymographBandShape#PLANAR} band shape.
+		 */
+		public Builder trackIDs( final List< Integer > trackIDs )
+		{
+			this.trackIDs = new ArrayList<>( trackIDs );
+			if ( !trackIDs.isEmpty() )
+			{
+				this.trackID1 = trackIDs.get( 0 );
+				this.trackID2 = trackIDs.get( trackIDs.size() - 1 );
+			}
+			return this;
+		}
+
+		public Builder spline( final boolean spline )
+		{
+			this.spline = spline;
 			return this;
 		}
 
@@ -93,6 +300,18 @@ public class KymographCreationParams
 			return this;
 		}
 
+		public Builder bandShape( final KymographBandShape bandShape )
+		{
+			this.bandShape = bandShape;
+			return this;
+		}
+
+		public Builder bandDepth( final int bandDepth )
+		{
+			this.bandDepth = bandDepth;
+			return this;
+		}
+
 		public Builder alignment( final KymographAlignment alignment )
 		{
 			this.alignment = alignment;
@@ -105,9 +324,87 @@ public class KymographCreationParams
 			return this;
 		}
 
+		public Builder percentile( final double percentile )
+		{
+			this.percentile = percentile;
+			return this;
+		}
+
+		public Builder samplingMethod( final KymographSamplingMethod samplingMethod )
+		{
+			this.samplingMethod = samplingMethod;
+			return this;
+		}
+
+		public Builder samplingStep( final double samplingStep )
+		{
+			this.samplingStep = samplingStep;
+			return this;
+		}
+
+		public Builder interpolation( final KymographInterpolation interpolation )
+		{
+			this.interpolation = interpolation;
+			return this;
+		}
+
+		public Builder slabAxis( final KymographSlabAxis slabAxis )
+		{
+			this.slabAxis = slabAxis;
+			return this;
+		}
+
+		public Builder slabDepth( final int slabDepth )
+		{
+			this.slabDepth = slabDepth;
+			return this;
+		}
+
+		public Builder outputMode( final KymographOutputMode outputMode )
+		{
+			this.outputMode = outputMode;
+			return this;
+		}
+
+		public Builder cellSize( final int cellSize )
+		{
+			this.cellSize = cellSize;
+			return this;
+		}
+
+		public Builder maxCachedCells( final int maxCachedCells )
+		{
+			this.maxCachedCells = maxCachedCells;
+			return this;
+		}
+
+		/**
+		 * Returns the parameters.
+		 * 
+		 * @return new parameters.
+		 * @throws IllegalArgumentException
+		 *             if the kymograph goes through more than two tracks with
+		 *             a sampling method other than
+		 *             {@link KymographSamplingMethod#INTERPOLATED} or a band
+		 *             shape other than {@link KymographBandShape#PLANAR}.
+		 */
 		public KymographCreationParams get()
 		{
-			return new KymographCreationParams( trackID1, trackID2, thickness, projectionMethod, alignment );
+			// The list, unless set explicitly, is the two-track special case.
+			final List< Integer > ids = ( trackIDs != null && trackIDs.size() >= 2 )
+					? trackIDs
+					: Arrays.asList( trackID1, trackID2 );
+			if ( ids.size() > 2 )
+			{
+				if ( samplingMethod != KymographSamplingMethod.INTERPOLATED )
+					throw new IllegalArgumentException( "Kymographs through more than two tracks must use the "
+							+ KymographSamplingMethod.INTERPOLATED + " sampling method, got " + samplingMethod + "." );
+				if ( bandShape != KymographBandShape.PLANAR )
+					throw new IllegalArgumentException( "Kymographs through more than two tracks must use the "
+							+ KymographBandShape.PLANAR + " band shape, got " + bandShape + "." );
+			}
+			return new KymographCreationParams( trackID1, trackID2, Collections.unmodifiableList( new ArrayList<>( ids ) ), spline, thickness, bandShape, bandDepth, projectionMethod, percentile, alignment, samplingMethod, samplingStep,
+					interpolation, slabAxis, slabDepth, outputMode, cellSize, maxCachedCells );
 		}
 	}
 
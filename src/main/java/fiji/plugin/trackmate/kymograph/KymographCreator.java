@@ -23,30 +23,40 @@ package fiji.plugin.trackmate.kymograph;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
-import org.scijava.util.DoubleArray;
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.scijava.Cancelable;
 
+import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.ModelChangeEvent;
+import fiji.plugin.trackmate.ModelChangeListener;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackModel;
 import fiji.plugin.trackmate.kymograph.KymographProjectionMethod.Accumulator;
 import fiji.plugin.trackmate.kymograph.ui.KymographUtils;
 import fiji.plugin.trackmate.util.TMUtils;
 import ij.CompositeImage;
-import ij.IJ;
 import ij.ImagePlus;
 import ij.process.LUT;
-import net.imagej.ImgPlus;
-import net.imglib2.Point;
-import net.imglib2.RandomAccess;
+import net.imglib2.algorithm.Benchmark;
+import net.imglib2.algorithm.MultiThreaded;
 import net.imglib2.algorithm.OutputAlgorithm;
-import net.imglib2.algorithm.region.BresenhamLine;
-import net.imglib2.img.Img;
-import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 
-public class KymographCreator implements OutputAlgorithm< ImagePlus >
+public class KymographCreator implements OutputAlgorithm< ImagePlus >, MultiThreaded, Benchmark, Cancelable, ModelChangeListener
 {
 
 	private static final String BASE_ERROR_MESSAGE = "[KymographCreator] ";
@@ -55,80 +65,479 @@ public class KymographCreator implements OutputAlgorithm< ImagePlus >
 
 	private final ImagePlus imp;
 
+	private final TrackFrameIndex index;
+
 	private KymographCreationParams params;
 
 	private ImagePlus output;
 
+	private OutputImage target;
+
+	private LazyKymograph< ? > lazy;
+
+	/**
+	 * The geometry of the line between the two tracks, rebuilt when the model
+	 * changes.
+	 */
+	private volatile TrackPairGeometry geometry;
+
+	/**
+	 * What the rows of the current output are sampled from, taken when the
+	 * kymograph was last measured.
+	 */
+	private volatile Snapshot snapshot;
+
 	private String errorMessage;
 
-	public KymographCreator( final Model model, final ImagePlus imp, final KymographCreationParams params )
+	private int numThreads;
+
+	private long processingTime;
+
+	private Logger logger = Logger.VOID_LOGGER;
+
+	private volatile String cancelReason;
+
+	/**
+	 * Runs the refreshes triggered by model edits one after the other, off the
+	 * thread that edits the model. Its thread stops when it is idle. Created
+	 * at the first refresh, and only used in {@link #modelChanged}, so that
+	 * creators that never follow the model do not have one.
+	 */
+	private ThreadPoolExecutor refresher;
+
+	/**
+	 * The snapshot taken at the last edit of the model, that the refresher
+	 * has not applied yet.
+	 */
+	private final AtomicReference< Snapshot > pendingSnapshot = new AtomicReference<>();
+
+	/**
+	 * Whether the output follows the edits of the model.
+	 */
+	private volatile boolean live;
+
+	public KymographCreator( final TrackFrameIndex index, final ImagePlus imp, final KymographCreationParams params )
 	{
-		this.model = model;
+		this.model = index.getModel();
+		this.index = index;
 		this.imp = imp;
 		this.params = params;
+		setNumThreads();
 	}
 
 	@Override
 	public boolean checkInput()
 	{
-		final boolean containsTrackID1 = model.getTrackModel().trackIDs( true ).contains( params.trackID1 );
-		if (!containsTrackID1)
+		if ( imp.getType() == ImagePlus.COLOR_RGB )
 		{
-			errorMessage = BASE_ERROR_MESSAGE + "Model does not contain a track with ID " + params.trackID1;
+			errorMessage = BASE_ERROR_MESSAGE + "RGB images are not supported. Split the channels or convert the image first.";
 			return false;
 		}
-		final boolean containsTrackID2 = model.getTrackModel().trackIDs( true ).contains( params.trackID2 );
-		if ( !containsTrackID2 )
+		for ( final Integer trackID : params.trackIDs )
 		{
-			errorMessage = BASE_ERROR_MESSAGE + "Model does not contain a track with ID " + params.trackID2;
-			return false;
+			final boolean containsTrackID = model.getTrackModel().trackIDs( true ).contains( trackID );
+			if ( !containsTrackID )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + "Model does not contain a track with ID " + trackID;
+				return false;
+			}
 		}
 		return true;
 	}
 
+	/**
+	 * Sets the parameters of the kymograph to create. They are used by the
+	 * next call to {@link #process()}, that creates a new output. They cannot
+	 * be changed while the current output is computed on demand or follows
+	 * the edits of the model, since it may still compute or refresh rows with
+	 * the current parameters.
+	 * 
+	 * @param params
+	 *            the parameters.
+	 * @throws IllegalStateException
+	 *             if the current output is computed on demand, or follows
+	 *             the edits of the model.
+	 */
 	public void setParams( final KymographCreationParams params )
 	{
+		if ( lazy != null || live )
+			throw new IllegalStateException( "The parameters cannot be changed while the kymograph is computed on demand or follows the model." );
 		this.params = params;
 	}
 
+	/**
+	 * Starts or stops updating the output of the last call to
+	 * {@link #process()} when the spots or links of its tracks are edited.
+	 * This registers or removes this creator as a listener of the model.
+	 * 
+	 * @param live
+	 *            whether the output follows the edits of the model.
+	 * @see #modelChanged(ModelChangeEvent)
+	 */
+	public void setLive( final boolean live )
+	{
+		if ( live == this.live )
+			return;
+		this.live = live;
+		if ( live )
+			model.addModelChangeListener( this );
+		else
+			model.removeModelChangeListener( this );
+	}
+
+	/**
+	 * Sets the geometry of the line between the two tracks, if it was already
+	 * computed, so that it is not computed again. It is ignored if it is not
+	 * the one of the tracks of the parameters.
+	 * 
+	 * @param geometry
+	 *            the geometry.
+	 */
+	public void setGeometry( final TrackPairGeometry geometry )
+	{
+		this.geometry = geometry;
+	}
+
+	/**
+	 * Sets the logger that receives the progress of the extraction.
+	 * 
+	 * @param logger
+	 *            the logger.
+	 */
+	public void setLogger( final Logger logger )
+	{
+		this.logger = logger;
+	}
+
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
 	@Override
 	public boolean process()
 	{
-		/*
-		 * Collect all the intensities.
-		 */
+		final long start = System.currentTimeMillis();
+		final Snapshot s = measure( index, geometry( index ) );
+		final boolean ok = s != null && create( s, logger );
+		processingTime = System.currentTimeMillis() - start;
+		return ok;
+	}
 
-		final int[] minmax = KymographUtils.getMinMaxTimePoints( model, params.trackID1, params.trackID1 );
-		final List< double[][] > lines = new ArrayList<>( minmax[ 1 ] - minmax[ 0 ] + 1 );
-		for ( int tp = minmax[ 0 ]; tp <= minmax[ 1 ]; tp++ )
+	private boolean create( final Snapshot s, final Logger logger )
+	{
+		lazy = null;
+		if ( params.outputMode == KymographOutputMode.ON_DEMAND )
 		{
-			final double[][] intensities = collectIntensities( tp );
-			lines.add( intensities );
+			use( s );
+
+			/*
+			 * Rows will be computed when they are first displayed.
+			 */
+
+			lazy = new LazyKymograph<>( snapshot, outputName() );
+			output = lazy.getImagePlus();
+			decorate( output );
+			return true;
 		}
 
+		prepare( s );
+
+		/*
+		 * Sample and write rows straight into the output image.
+		 */
+
+		return extract( IntStream.rangeClosed( snapshot.firstFrame, snapshot.lastFrame ), false, logger );
+	}
+
+	/**
+	 * Updates the output of the last call to {@link #process()} after an edit
+	 * of the model, in place. The geometry is read again from the model, and
+	 * if the kymograph keeps its size, only the rows of the time-points where
+	 * the spots of the tracks changed are sampled again and patched into the
+	 * output. Otherwise the whole kymograph is created again, and its stack
+	 * replaces the one of the output.
+	 * <p>
+	 * The model is read in the calling thread, which must be the one editing
+	 * it. Refreshes of the same output, including the ones triggered by model
+	 * edits, are applied one after the other. The progress is not reported to
+	 * the logger of this creator.
+	 * 
+	 * @return <code>true</code> if the update completed successfully.
+	 */
+	public boolean refresh()
+	{
+		final Snapshot s = take();
+		return s != null && apply( s );
+	}
+
+	/**
+	 * Reads the tracks from the model and freezes them in a new snapshot,
+	 * without changing the output.
+	 * 
+	 * @return the new snapshot, or <code>null</code> if the two tracks do not
+	 *         have spots in common time-points anymore.
+	 */
+	private Snapshot take()
+	{
 		/*
-		 * Determine max width.
+		 * Read the tracks through a private index, that cannot be stale
+		 * whatever the order in which the listeners of the model are notified.
 		 */
 
-		final int width = lines.stream()
-				.filter( Objects::nonNull )
-				.mapToInt( l -> l[ 0 ].length )
-				.max().getAsInt();
+		final TrackFrameIndex current = new TrackFrameIndex( model );
+		return measure( current, TrackPairGeometry.create( current, imp, params.trackID1, params.trackID2 ) );
+	}
+
+	/**
+	 * Updates the output to the specified snapshot. Only reads the snapshot,
+	 * not the model, so it can run in any thread.
+	 */
+	private synchronized boolean apply( final Snapshot s )
+	{
+		if ( output == null )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "There is no kymograph to refresh.";
+			return false;
+		}
+
+		final Snapshot old = snapshot;
+		if ( s.firstFrame != old.firstFrame || s.lastFrame != old.lastFrame || s.width != old.width )
+		{
+			/*
+			 * The size changed. Create the kymograph again, and swap its
+			 * stack into the displayed image.
+			 */
+
+			final ImagePlus displayed = output;
+			if ( !create( s, Logger.VOID_LOGGER ) )
+				return false;
+			displayed.setStack( output.getStack(), output.getNChannels(), output.getNSlices(), output.getNFrames() );
+			displayed.setCalibration( output.getCalibration() );
+			output = displayed;
+			output.updateAndDraw();
+			return true;
+		}
+
+		use( s );
+		final int[] changed = IntStream.rangeClosed( s.firstFrame, s.lastFrame )
+				.filter( tp -> !s.sameRow( old, tp ) )
+				.toArray();
+		if ( changed.length == 0 )
+			return true;
+
+		if ( lazy != null )
+		{
+			/*
+			 * The rows of the displayed kymograph are computed from the
+			 * snapshot it was created with. Replace it by a kymograph built on
+			 * the new snapshot, that reuses the rows of the old one that did
+			 * not change.
+			 */
+
+			lazy = new LazyKymograph<>( s, outputName(), lazy, changed );
+			final ImagePlus updated = lazy.getImagePlus();
+			output.setStack( updated.getStack(), updated.getNChannels(), updated.getNSlices(), updated.getNFrames() );
+			output.updateAndDraw();
+			return true;
+		}
+
+		if ( !extract( IntStream.of( changed ), true, Logger.VOID_LOGGER ) )
+			return false;
+		output.updateAndDraw();
+		return true;
+	}
+
+	/**
+	 * Refreshes the output of the last call to {@link #process()} when the
+	 * spots or links of its tracks are edited. Edits that do not involve them
+	 * are ignored. The tracks are read in the thread making the edit; the rows
+	 * are sampled in a background thread, after the refreshes triggered by
+	 * previous edits, and only the rows whose spots changed are updated.
+	 */
+	@Override
+	public void modelChanged( final ModelChangeEvent event )
+	{
+		if ( output == null || event.getEventID() != ModelChangeEvent.MODEL_MODIFIED || !concerns( event ) )
+			return;
+
+		final Snapshot s = take();
+		if ( s == null )
+		{
+			model.getLogger().error( errorMessage + '\n' );
+			return;
+		}
+
+		// A refresh that has not started yet applies the latest snapshot.
+		if ( pendingSnapshot.getAndSet( s ) != null )
+			return;
+
+		if ( refresher == null )
+		{
+			refresher = new ThreadPoolExecutor( 1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+				final Thread thread = new Thread( r, "TrackMate kymograph refresh thread" );
+				thread.setDaemon( true );
+				return thread;
+			} );
+			refresher.allowCoreThreadTimeOut( true );
+		}
+		refresher.execute( () -> {
+			if ( !apply( pendingSnapshot.getAndSet( null ) ) )
+				model.getLogger().error( errorMessage + '\n' );
+		} );
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified event involves a spot or a
+	 * link of the tracks of this kymograph, or one that is not in a track
+	 * anymore and might have been.
+	 */
+	private boolean concerns( final ModelChangeEvent event )
+	{
+		final TrackModel trackModel = model.getTrackModel();
+		if ( event.getSpots() != null )
+			for ( final Spot spot : event.getSpots() )
+				if ( concerns( trackModel.trackIDOf( spot ) ) )
+					return true;
+
+		if ( event.getEdges() != null )
+			for ( final DefaultWeightedEdge edge : event.getEdges() )
+				if ( concerns( trackModel.trackIDOf( edge ) ) )
+					return true;
+
+		return false;
+	}
+
+	private boolean concerns( final Integer trackID )
+	{
+		return trackID == null || params.trackIDs.contains( trackID );
+	}
+
+	/**
+	 * Determines the size of the output image from the line geometry, and
+	 * creates it.
+	 * 
+	 * @return <code>true</code> if the output could be created.
+	 */
+	boolean prepare()
+	{
+		return prepare( index );
+	}
+
+	private boolean prepare( final TrackFrameIndex index )
+	{
+		final Snapshot s = measure( index, geometry( index ) );
+		if ( s == null )
+			return false;
+
+		prepare( s );
+		return true;
+	}
+
+	private void prepare( final Snapshot s )
+	{
+		use( s );
 
 		/*
 		 * Prepare output.
 		 */
-		
-		final String outputName = String.format( "%s_Kymograph_%s-%s",
-				imp.getShortTitle(),
-				params.trackID1.toString(),
-				params.trackID2.toString() );
-		final int height = minmax[ 1 ] - minmax[ 0 ] + 1;
+
+		final int height = getHeight();
 		final int nChannels = imp.getNChannels();
 		final int nZSlices = 1 ;
 		final int nFrames = 1;
-		output = IJ.createHyperStack( outputName, width, height, nChannels, nZSlices, nFrames, imp.getBitDepth() );
-		output.getCalibration().pixelWidth = imp.getCalibration().pixelWidth;
+		target = OutputImage.create( outputName(), getWidth(), height, nChannels, nZSlices, nFrames, imp.getBitDepth(), params );
+		output = target.getImagePlus();
+		decorate( output );
+	}
+
+	/**
+	 * Returns the geometry of the line between the two tracks, computed from
+	 * the specified index unless it was already set.
+	 */
+	private TrackPairGeometry geometry( final TrackFrameIndex index )
+	{
+		final TrackPairGeometry g = geometry;
+		if ( g != null && g.isFor( params.trackID1, params.trackID2 ) )
+			return g;
+		return TrackPairGeometry.create( index, imp, params.trackID1, params.trackID2 );
+	}
+
+	/**
+	 * Determines the time-points and the width of the kymograph from the line
+	 * geometry, and freezes them with the parameters in a new snapshot.
+	 * 
+	 * @param index
+	 *            the index to read the tracks from.
+	 * @param g
+	 *            the geometry of the line between the two tracks.
+	 * @return the new snapshot, or <code>null</code> if the two tracks do not
+	 *         have spots in common time-points.
+	 */
+	private Snapshot measure( final TrackFrameIndex index, final TrackPairGeometry g )
+	{
+		final Snapshot s;
+		if ( params.isPath() )
+		{
+			// The time-points covered by all the tracks.
+			int firstFrame = Integer.MIN_VALUE;
+			int lastFrame = Integer.MAX_VALUE;
+			for ( final Integer trackID : params.trackIDs )
+			{
+				firstFrame = Math.max( firstFrame, index.getMinFrame( trackID ) );
+				lastFrame = Math.min( lastFrame, index.getMaxFrame( trackID ) );
+			}
+			s = new Snapshot( imp, params, g, firstFrame, lastFrame, index );
+		}
+		else
+		{
+			s = new Snapshot( imp, params, g, g.getFirstFrame(), g.getLastFrame(), index );
+		}
+		if ( s.width == 0 )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "The tracks " + params.trackIDs + " do not have spots in common time-points.";
+			return null;
+		}
+		return s;
+	}
+
+	/**
+	 * Makes the specified snapshot the one the rows of the output are sampled
+	 * from.
+	 */
+	private void use( final Snapshot s )
+	{
+		geometry = s.geometry;
+		snapshot = s;
+	}
+
+	private String outputName()
+	{
+		return String.format( "%s_Kymograph_%s",
+				imp.getShortTitle(),
+				params.trackIDs.stream().map( Object::toString ).collect( Collectors.joining( "-" ) ) );
+	}
+
+	/**
+	 * Sets the calibration and the LUTs of the specified output image.
+	 */
+	private void decorate( final ImagePlus output )
+	{
+		final boolean interpolated = params.samplingMethod == KymographSamplingMethod.INTERPOLATED;
+		output.getCalibration().pixelWidth = interpolated ? snapshot.step : imp.getCalibration().pixelWidth;
 		output.getCalibration().setXUnit( imp.getCalibration().getUnit() );
 		output.getCalibration().pixelHeight = imp.getCalibration().frameInterval;
 		output.getCalibration().setYUnit( imp.getCalibration().getTimeUnit() );
@@ -139,123 +548,601 @@ public class KymographCreator implements OutputAlgorithm< ImagePlus >
 			( ( CompositeImage ) output ).setLuts( luts );
 			( ( CompositeImage ) output ).setDisplayMode( CompositeImage.GRAYSCALE );
 		}
+	}
 
-		/*
-		 * Write into output image.
-		 */
+	/**
+	 * Returns the first time-point of the kymograph. Only valid after
+	 * {@link #prepare()}.
+	 */
+	int getFirstFrame()
+	{
+		return snapshot.firstFrame;
+	}
+
+	/**
+	 * Returns the last time-point of the kymograph. Only valid after
+	 * {@link #prepare()}.
+	 */
+	int getLastFrame()
+	{
+		return snapshot.lastFrame;
+	}
 
-		writeInto( output, lines );
+	/**
+	 * Returns the width of the kymograph. Only valid after {@link #prepare()}.
+	 */
+	int getWidth()
+	{
+		return snapshot.width;
+	}
+
+	/**
+	 * Returns the height of the kymograph, that is its number of time-points.
+	 * Only valid after {@link #prepare()}.
+	 */
+	int getHeight()
+	{
+		return snapshot.getHeight();
+	}
+
+	/**
+	 * Creates a row extractor that writes into the output of this creator,
+	 * reading the source image through the specified accessors. Only valid
+	 * after {@link #prepare()}.
+	 * 
+	 * @param accessors
+	 *            the accessors on the source image, owned by the calling
+	 *            thread.
+	 * @return a new row extractor.
+	 */
+	< T extends RealType< T > & NativeType< T > > RowExtractor< T > rowExtractor( final SliceViews< T >.Accessors accessors )
+	{
+		final PlaneWriter[] planes = new PlaneWriter[ imp.getNChannels() ];
+		for ( int c = 0; c < planes.length; c++ )
+			planes[ c ] = target.writer( c, 0, 0 );
+		return new RowExtractor<>( snapshot, accessors, planes );
+	}
 
+	/**
+	 * Collects the intensities of the specified time-points, and writes them
+	 * into the output image as soon as they are ready. Time-points are
+	 * processed in parallel, and the progress is reported to the specified
+	 * logger. The extraction stops early if this creator is canceled.
+	 * 
+	 * @param frames
+	 *            the time-points to process.
+	 * @param clear
+	 *            whether to clear the rows before writing them, when they
+	 *            might hold a previous result.
+	 * @param logger
+	 *            the logger to report the progress to.
+	 * @return <code>true</code> if the extraction completed successfully.
+	 */
+	private < T extends RealType< T > & NativeType< T > > boolean extract( final IntStream frames, final boolean clear, final Logger logger )
+	{
+		final int[] tps = frames.toArray();
+		final SliceViews< T > views = new SliceViews<>( imp, numThreads );
+		final ThreadLocal< RowExtractor< T > > extractors = ThreadLocal.withInitial( () -> rowExtractor( views.accessors() ) );
+		final AtomicInteger done = new AtomicInteger( 0 );
+		final ForkJoinPool pool = new ForkJoinPool( numThreads );
+		try
+		{
+			pool.submit( () -> IntStream.of( tps ).parallel().forEach( tp -> {
+				if ( isCanceled() )
+					return;
+				final RowExtractor< T > extractor = extractors.get();
+				if ( clear )
+					extractor.clear( tp );
+				extractor.extract( tp );
+				// Only report whole percent changes.
+				final int d = done.incrementAndGet();
+				if ( d * 100L / tps.length != ( d - 1 ) * 100L / tps.length )
+					logger.setProgress( ( double ) d / tps.length );
+			} ) ).get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Problem extracting intensities: " + e.getMessage();
+			return false;
+		}
+		finally
+		{
+			pool.shutdown();
+			logger.setProgress( 0. );
+		}
+		if ( isCanceled() )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Canceled: " + cancelReason;
+			return false;
+		}
 		return true;
 	}
 
-	private < T extends RealType< T > & NativeType< T > > void writeInto( final ImagePlus target, final List< double[][] > lines )
+	/**
+	 * Returns the number of pixels on the Bresenham line between the two
+	 * specified points.
+	 * 
+	 * @param from
+	 *            the first point.
+	 * @param to
+	 *            the second point.
+	 * @return the number of pixels on the line.
+	 */
+	private static int lineLength( final long[] from, final long[] to )
 	{
-		final Img< T > outimg = ImageJFunctions.wrap( output );
-		final int width = ( int ) outimg.dimension( 0 );
-		final int height = ( int ) outimg.dimension( 1 );
-		final int nChannels = ( int ) outimg.dimension( 2 );
+		long n = 0;
+		for ( int d = 0; d < from.length; d++ )
+			n = Math.max( n, Math.abs( to[ d ] - from[ d ] ) );
+		return ( int ) n + 1;
+	}
 
-		final RandomAccess< T > ra = outimg.randomAccess( outimg );
-		for ( int y = 0; y < height; y++ )
+	/**
+	 * Returns the number of samples taken at a constant physical step along
+	 * the line between the two specified points.
+	 * 
+	 * @param from
+	 *            the first point, in pixel coordinates.
+	 * @param to
+	 *            the second point, in pixel coordinates.
+	 * @param calibration
+	 *            the pixel sizes.
+	 * @param step
+	 *            the step between two samples, in physical units.
+	 * @return the number of samples.
+	 */
+	private static int nSamples( final double[] from, final double[] to, final double[] calibration, final double step )
+	{
+		double l2 = 0.;
+		for ( int d = 0; d < from.length; d++ )
 		{
-			final double[][] intensities = lines.get( y );
-			if ( intensities == null )
-				continue;
+			final double dx = ( to[ d ] - from[ d ] ) * calibration[ d ];
+			l2 += dx * dx;
+		}
+		return ( int ) Math.floor( Math.sqrt( l2 ) / step ) + 1;
+	}
 
-			ra.setPosition( y, 1 );
-			for ( int c = 0; c < nChannels; c++ )
+	/**
+	 * Everything the rows of a kymograph are sampled from: the source image,
+	 * the parameters, the line geometry, the path vertices and the size of
+	 * the kymograph. It is taken when the kymograph is measured and never
+	 * changes afterwards, so that rows computed at different times, for
+	 * instance by the loader of a {@link LazyKymograph}, are consistent with
+	 * each other whatever happens to the creator or the model in between.
+	 */
+	static final class Snapshot
+	{
+
+		final ImagePlus imp;
+
+		final KymographCreationParams params;
+
+		final TrackPairGeometry geometry;
+
+		final int firstFrame;
+
+		final int lastFrame;
+
+		/**
+		 * The step between two samples along the line, in physical units, for
+		 * the interpolated sampling method.
+		 */
+		final double step;
+
+		final double[] calibration;
+
+		final int width;
+
+		/**
+		 * The vertices of the path, in pixel coordinates, for each time-point
+		 * from the first one. <code>null</code> if the kymograph is not
+		 * sampled along a path.
+		 */
+		private final List< List< double[] > > pathVertices;
+
+		private Snapshot(
+				final ImagePlus imp,
+				final KymographCreationParams params,
+				final TrackPairGeometry geometry,
+				final int firstFrame,
+				final int lastFrame,
+				final TrackFrameIndex index )
+		{
+			this.imp = imp;
+			this.params = params;
+			this.geometry = geometry;
+			this.firstFrame = firstFrame;
+			this.lastFrame = lastFrame;
+			this.calibration = TMUtils.getSpatialCalibration( imp );
+			this.step = params.samplingStep > 0. ? params.samplingStep : calibration[ 0 ];
+
+			if ( params.isPath() )
+			{
+				pathVertices = new ArrayList<>( Math.max( 0, lastFrame - firstFrame + 1 ) );
+				for ( int tp = firstFrame; tp <= lastFrame; tp++ )
+					pathVertices.add( pathVertices( index, tp ) );
+			}
+			else
 			{
-				ra.setPosition( c, 2 );
-				final double[] line = intensities[ c ];
-				final int offset = params.alignment.offset( line.length, width );
-				for ( int x = 0; x < line.length; x++ )
+				pathVertices = null;
+			}
+
+			final boolean interpolated = params.samplingMethod == KymographSamplingMethod.INTERPOLATED;
+			int w = 0;
+			for ( int tp = firstFrame; tp <= lastFrame; tp++ )
+			{
+				if ( params.isPath() )
 				{
-					ra.setPosition( x + offset, 0 );
-					ra.get().setReal( line[ x ] );
+					final List< double[] > vertices = getPathVertices( tp );
+					if ( vertices == null )
+						continue;
+
+					w = Math.max( w, PathSamplingTable.size( vertices, calibration, step, params.spline ) );
 				}
+				else if ( interpolated )
+				{
+					if ( !geometry.contains( tp ) )
+						continue;
+
+					w = Math.max( w, nSamples( geometry.getPosition1( tp ), geometry.getPosition2( tp ), calibration, step ) );
+				}
+				else
+				{
+					if ( !geometry.contains( tp ) )
+						continue;
+
+					w = Math.max( w, lineLength( geometry.getCoords1( tp ), geometry.getCoords2( tp ) ) );
+				}
+			}
+			this.width = w;
+		}
+
+		/**
+		 * Returns the positions of the spots of all the tracks of the path in
+		 * the specified time-point, in pixel coordinates, or <code>null</code>
+		 * if one of the tracks does not have a spot in it.
+		 */
+		private List< double[] > pathVertices( final TrackFrameIndex index, final int tp )
+		{
+			final List< double[] > vertices = new ArrayList<>( params.trackIDs.size() );
+			for ( final Integer trackID : params.trackIDs )
+			{
+				final double[] position = KymographUtils.getPosition( index, imp, tp, trackID );
+				if ( position == null )
+					return null;
+				vertices.add( position );
 			}
+			return Collections.unmodifiableList( vertices );
+		}
+
+		/**
+		 * Returns the vertices of the path in the specified time-point, or
+		 * <code>null</code> if one of the tracks does not have a spot in it.
+		 */
+		List< double[] > getPathVertices( final int tp )
+		{
+			if ( pathVertices == null || tp < firstFrame || tp > lastFrame )
+				return null;
+			return pathVertices.get( tp - firstFrame );
+		}
+
+		int getHeight()
+		{
+			return lastFrame - firstFrame + 1;
+		}
+
+		/**
+		 * Returns <code>true</code> if the row of the specified time-point is
+		 * sampled from the same line or path in this snapshot and in the
+		 * specified one, which must have the same parameters.
+		 */
+		boolean sameRow( final Snapshot other, final int tp )
+		{
+			if ( params.isPath() )
+			{
+				final List< double[] > vertices = getPathVertices( tp );
+				final List< double[] > otherVertices = other.getPathVertices( tp );
+				if ( vertices == null || otherVertices == null )
+					return vertices == otherVertices;
+				for ( int i = 0; i < vertices.size(); i++ )
+					if ( !Arrays.equals( vertices.get( i ), otherVertices.get( i ) ) )
+						return false;
+				return true;
+			}
+			return Arrays.equals( geometry.getPosition1( tp ), other.geometry.getPosition1( tp ) )
+					&& Arrays.equals( geometry.getPosition2( tp ), other.geometry.getPosition2( tp ) );
 		}
 	}
 
 	/**
-	 * Returns <code>null</code> if one of the two tracks does not have a spot
-	 * in the specified time-point. Otherwise returns the intensity between the
-	 * two tracks at this time-point, as an array of <code>double</code> arrays,
-	 * with one element per channel.
-	 * 
-	 * @param tp
-	 *            the time-point.
-	 * @return a new <code>double[][]</code> array.
+	 * Extracts the rows of the kymograph described by a snapshot. Each
+	 * instance owns the buffers it accumulates intensities into, its writers
+	 * on the output planes if any, and its stencil cache, and is meant to be
+	 * reused by one thread for many rows. The accessors on the source image
+	 * can be shared with the extractors of other kymographs used by the same
+	 * thread.
 	 */
-	private double[][] collectIntensities( final int tp )
+	static final class RowExtractor< T extends RealType< T > & NativeType< T > >
 	{
-		final long[] coords1 = KymographUtils.getCoords( model, imp, tp, params.trackID1 );
-		final long[] coords2 = KymographUtils.getCoords( model, imp, tp, params.trackID2 );
-		if ( coords1 == null || coords2 == null )
-			return null;
 
-		final int nChannels = imp.getNChannels();
-		final double[][] intensities = new double[ nChannels ][];
-		for ( int c = 0; c < nChannels; c++ )
-			intensities[ c ] = getProjectedIntensity( coords1, coords2, c, tp );
+		private final Snapshot snapshot;
 
-		return intensities;
-	}
+		private final KymographCreationParams params;
 
-	private < T extends RealType< T > & NativeType< T > > double[] getProjectedIntensity( final long[] from, final long[] to, final int channel, final int timepoint )
-	{
-		@SuppressWarnings( "unchecked" )
-		final ImgPlus< T > img = TMUtils.rawWraps( imp );
-		final ImgPlus< T > current = TMUtils.hyperSlice( img, channel, timepoint );
+		private final TrackPairGeometry geometry;
+
+		private final SliceViews< T >.Accessors accessors;
+
+		private final SliceSampler[] samplers;
+
+		private final PlaneWriter[] planes;
+
+		private final Accumulator[] accumulators;
+
+		private final double[] values;
+
+		private final SamplingStencil.Cache stencils;
+
+		private final double[] calibration;
+
+		/**
+		 * Scratch arrays for the ends of the line, in pixel coordinates.
+		 */
+		private final double[] from;
+
+		private final double[] to;
+
+		private final long[] coords1;
+
+		private final long[] coords2;
+
+		/**
+		 * Creates a row extractor.
+		 * 
+		 * @param snapshot
+		 *            the snapshot of the kymograph to extract.
+		 * @param accessors
+		 *            the accessors on the source image, owned by the calling
+		 *            thread.
+		 * @param planes
+		 *            the planes to write in, one per channel, or
+		 *            <code>null</code> if they are given at each extraction.
+		 */
+		RowExtractor( final Snapshot snapshot, final SliceViews< T >.Accessors accessors, final PlaneWriter[] planes )
+		{
+			final ImagePlus imp = snapshot.imp;
+			final int nChannels = imp.getNChannels();
+			this.snapshot = snapshot;
+			this.params = snapshot.params;
+			this.geometry = snapshot.geometry;
+			this.accessors = accessors;
+			this.samplers = new SliceSampler[ nChannels ];
+			this.planes = planes;
+			this.accumulators = new Accumulator[ nChannels ];
+			// Pixel values are exact in the source type, interpolated ones are not.
+			final int bitDepth = params.samplingMethod == KymographSamplingMethod.PIXELS ? imp.getBitDepth() : 0;
+			for ( int c = 0; c < nChannels; c++ )
+				accumulators[ c ] = params.projectionMethod.accumulator( snapshot.width, params.percentile, bitDepth );
+			this.values = new double[ nChannels ];
+			final int nDims = imp.getNSlices() > 1 ? 3 : 2;
+			this.from = new double[ nDims ];
+			this.to = new double[ nDims ];
+			this.coords1 = new long[ nDims ];
+			this.coords2 = new long[ nDims ];
+			this.calibration = snapshot.calibration;
+			final double zScale = calibration[ 2 ] / calibration[ 0 ];
+			this.stencils = new SamplingStencil.Cache( params.bandShape, params.thickness, params.bandDepth, zScale, imp.getWidth(), nDims );
+		}
+
+		/**
+		 * Collects the intensity between the two tracks at the specified
+		 * time-point, for all channels, and writes it in the matching row of
+		 * the output image. Does nothing if the time-point is not in the
+		 * kymograph or if one of the two tracks does not have a spot in it.
+		 * 
+		 * @param tp
+		 *            the time-point.
+		 */
+		void extract( final int tp )
+		{
+			extract( tp, planes );
+		}
+
+		/**
+		 * Collects the intensity between the two tracks at the specified
+		 * time-point, for all channels, and writes it in the matching row of
+		 * the specified planes.
+		 * 
+		 * @param tp
+		 *            the time-point.
+		 * @param planes
+		 *            the planes to write in, one per channel, in the
+		 *            coordinates of the kymograph.
+		 */
+		void extract( final int tp, final PlaneWriter[] planes )
+		{
+			if ( tp < snapshot.firstFrame || tp > snapshot.lastFrame )
+				return;
+
+			for ( int c = 0; c < samplers.length; c++ )
+				samplers[ c ] = accessors.sampler( c, tp );
+
+			final int length;
+			if ( params.isPath() )
+				length = accumulatePath( tp );
+			else if ( params.samplingMethod == KymographSamplingMethod.INTERPOLATED )
+				length = accumulateInterpolated( tp );
+			else
+				length = accumulatePixels( tp );
+			if ( length < 0 )
+				return;
+
+			final int y = tp - snapshot.firstFrame;
+			for ( int c = 0; c < planes.length; c++ )
+				writeInto( planes[ c ], y, accumulators[ c ] );
+		}
+
+		/**
+		 * Sets to 0 the row of the specified time-point in the output planes.
+		 */
+		void clear( final int tp )
+		{
+			if ( tp < snapshot.firstFrame || tp > snapshot.lastFrame )
+				return;
+
+			final int y = tp - snapshot.firstFrame;
+			for ( final PlaneWriter plane : planes )
+				for ( int x = 0; x < plane.getWidth(); x++ )
+					plane.set( x, y, 0. );
+		}
+
+		/**
+		 * Writes the projected intensities of one channel in the specified row
+		 * of the output plane, converting them to the pixel type of the
+		 * output.
+		 * 
+		 * @param plane
+		 *            the output plane.
+		 * @param y
+		 *            the row to write in.
+		 * @param accumulator
+		 *            the accumulator holding the projected intensities.
+		 */
+		private void writeInto( final PlaneWriter plane, final int y, final Accumulator accumulator )
+		{
+			final int width = plane.getWidth();
+			final int length = accumulator.length();
+			final int offset = params.alignment.offset( length, width );
+			final int start = Math.max( 0, -offset );
+			final int end = Math.min( length, width - offset );
+			for ( int x = start; x < end; x++ )
+				plane.set( x + offset, y, accumulator.get( x ) );
+		}
+
+		private void reset( final int length )
+		{
+			for ( final Accumulator accumulator : accumulators )
+				accumulator.reset( length );
+		}
+
+		/**
+		 * Samples the pixels of the stencil of the line between the two tracks,
+		 * for all channels. Returns the length of the projected line, or -1 if
+		 * one of the two tracks does not have a spot in the specified
+		 * time-point.
+		 */
+		private int accumulatePixels( final int tp )
+		{
+			if ( !geometry.getCoords1( tp, coords1 ) || !geometry.getCoords2( tp, coords2 ) )
+				return -1;
 
-		// Projection accumulator.
-		final Accumulator accumulator = params.projectionMethod.accumulator();
-		final double[] intensity = getIntensity( from, to, current );
-		accumulator.accumulate( intensity );
+			final SamplingStencil stencil = stencils.get( coords1, coords2 );
+			reset( stencil.length() );
+			stencil.accumulate( samplers, coords1, accumulators );
+			return stencil.length();
+		}
 
-		// Shift and accumulate intensities.
-		final int span = params.thickness / 2;
-		for ( int u = 1; u < span; u++ )
+		/**
+		 * Samples points along the path through all the tracks, at a constant
+		 * arc length step, with linear interpolation, for all channels. Thick
+		 * paths are sampled on parallel paths shifted along their normal in
+		 * the XY plane by one pixel increments. Returns the length of the
+		 * projected path, or -1 if one of the tracks does not have a spot in
+		 * the specified time-point.
+		 */
+		private int accumulatePath( final int tp )
 		{
-			accumulator.accumulate( shiftAndGetIntensity( u, from, to, current ) );
-			accumulator.accumulate( shiftAndGetIntensity( -u, from, to, current ) );
+			final List< double[] > vertices = snapshot.getPathVertices( tp );
+			if ( vertices == null )
+				return -1;
+
+			final PathSamplingTable table = PathSamplingTable.create( vertices, calibration, snapshot.step, params.spline );
+			reset( table.size() );
+			final int span = Math.max( 0, params.thickness / 2 - 1 );
+			table.accumulate( samplers, span, values, accumulators );
+			return table.size();
+		}
+
+		/**
+		 * Samples points along the line between the two tracks, separated by
+		 * the sampling step, with linear interpolation, for all channels. Thick
+		 * lines are sampled on parallel lines shifted by one pixel increments
+		 * across the band, along the normal in the XY plane or over the
+		 * cross-section of the 3D band. Returns the length of the projected
+		 * line, or -1 if one of the two tracks does not have a spot in the
+		 * specified time-point.
+		 */
+		private int accumulateInterpolated( final int tp )
+		{
+			if ( !geometry.getPosition1( tp, from ) || !geometry.getPosition2( tp, to ) )
+				return -1;
+
+			final int n = nSamples( from, to, calibration, snapshot.step );
+			reset( n );
+
+			final double dx = to[ 0 ] - from[ 0 ];
+			final double dy = to[ 1 ] - from[ 1 ];
+			final double dz = from.length > 2 ? to[ 2 ] - from[ 2 ] : 0.;
+			final double z0 = from.length > 2 ? from[ 2 ] : 0.;
+
+			// Step vector in pixel coordinates.
+			final double lx = dx * calibration[ 0 ];
+			final double ly = dy * calibration[ 1 ];
+			final double lz = dz * calibration[ 2 ];
+			final double length = Math.sqrt( lx * lx + ly * ly + lz * lz );
+			final double ratio = length == 0. ? 0. : snapshot.step / length;
+			final double sx = dx * ratio;
+			final double sy = dy * ratio;
+			final double sz = dz * ratio;
+
+			// Offsets of the parallel lines across the band.
+			final double[] delta = from.length > 2 ? new double[] { dx, dy, dz } : new double[] { dx, dy };
+			final double[] offsets = SamplingStencil.crossSection( delta, params.bandShape, params.thickness, params.bandDepth, calibration[ 2 ] / calibration[ 0 ] );
+			for ( int o = 0; o < offsets.length; o += 3 )
+			{
+				final double x0 = from[ 0 ] + offsets[ o ];
+				final double y0 = from[ 1 ] + offsets[ o + 1 ];
+				final double zo = z0 + offsets[ o + 2 ];
+				for ( int i = 0; i < n; i++ )
+				{
+					SliceSampler.interpolate( samplers, x0 + i * sx, y0 + i * sy, zo + i * sz, values );
+					for ( int c = 0; c < values.length; c++ )
+						accumulators[ c ].accumulate( i, values[ c ] );
+				}
+			}
+			return n;
 		}
-		return accumulator.get();
 	}
 
-	private < T extends RealType< T > & NativeType< T > > double[] shiftAndGetIntensity( final double shift, final long[] from, final long[] to, final ImgPlus< T > current )
+	@Override
+	public String getErrorMessage()
 	{
-		// Orthogonal vector in XY plane (even if we have 3D data).
-		final double dx = to[ 0 ] - from[ 0 ];
-		final double dy = to[ 1 ] - from[ 1 ];
-		final double l = Math.sqrt( dx * dx + dy * dy );
-		final double ovx = -dy / l;
-		final double ovy = dx / l;
+		return errorMessage;
+	}
 
-		final long[] tmpFrom = Arrays.copyOf( from, from.length );
-		tmpFrom[ 0 ] = Math.round( shift * ovx + tmpFrom[ 0 ] );
-		tmpFrom[ 1 ] = Math.round( shift * ovy + tmpFrom[ 1 ] );
-		final long[] tmpTo = Arrays.copyOf( to, to.length );
-		tmpTo[ 0 ] = Math.round( shift * ovx + tmpTo[ 0 ] );
-		tmpTo[ 1 ] = Math.round( shift * ovy + tmpTo[ 1 ] );
-		return getIntensity( tmpFrom, tmpTo, current );
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
 	}
 
-	private < T extends RealType< T > & NativeType< T > > double[] getIntensity( final long[] from, final long[] to, final ImgPlus< T > current )
+	// --- org.scijava.Cancelable methods ---
+
+	@Override
+	public boolean isCanceled()
 	{
-		final BresenhamLine< T > line = new BresenhamLine<>( current, Point.wrap( from ), Point.wrap( to ) );
-		final DoubleArray arr = new DoubleArray();
-		while ( line.hasNext() )
-			arr.addValue( line.next().getRealDouble() );
+		return cancelReason != null;
+	}
 
-		return arr.copyArray();
+	@Override
+	public void cancel( final String reason )
+	{
+		cancelReason = reason;
 	}
 
 	@Override
-	public String getErrorMessage()
+	public String getCancelReason()
 	{
-		return errorMessage;
+		return cancelReason;
 	}
 
 	@Override
@@ -263,4 +1150,14 @@ public class KymographCreator implements OutputAlgorithm< ImagePlus >
 	{
 		return output;
 	}
+
+	/**
+	 * Returns the on-demand kymograph created by the last call to
+	 * {@link #process()}, or <code>null</code> if the output mode was not
+	 * {@link KymographOutputMode#ON_DEMAND}.
+	 */
+	public LazyKymograph< ? > getLazyKymograph()
+	{
+		return lazy;
+	}
 }
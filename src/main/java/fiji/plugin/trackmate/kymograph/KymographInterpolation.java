@@ -0,0 +1,148 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * The interpolation kernels used to resample registered images.
+ * <p>
+ * Except for linear interpolation, the kernel weights are not evaluated per
+ * pixel: they are tabulated once for {@link #PHASES} sub-pixel phases, and the
+ * phase of a sample position is rounded to the nearest one.
+ */
+public enum KymographInterpolation
+{
+
+	/**
+	 * Bilinear interpolation, from the 2 x 2 neighbor pixels.
+	 */
+	LINEAR( "Linear", 1, KymographInterpolation::linear ),
+	/**
+	 * Bicubic convolution (Keys, a = -0.5), from the 4 x 4 neighbor pixels.
+	 */
+	BICUBIC( "Bicubic", 2, KymographInterpolation::cubic ),
+	/**
+	 * Lanczos interpolation with 3 lobes, from the 6 x 6 neighbor pixels.
+	 */
+	LANCZOS3( "Lanczos-3", 3, KymographInterpolation::lanczos3 );
+
+	/**
+	 * The number of sub-pixel phases the weights are tabulated for.
+	 */
+	static final int PHASES = 256;
+
+	private final String name;
+
+	private final int radius;
+
+	/**
+	 * The weights of the taps, for each phase from 0 to {@link #PHASES}
+	 * included, laid out phase by phase.
+	 */
+	private final double[] weights;
+
+	KymographInterpolation( final String name, final int radius, final DoubleUnaryOperator kernel )
+	{
+		this.name = name;
+		this.radius = radius;
+		final int taps = 2 * radius;
+		this.weights = new double[ ( PHASES + 1 ) * taps ];
+		for ( int p = 0; p <= PHASES; p++ )
+		{
+			final double frac = ( double ) p / PHASES;
+			double sum = 0.;
+			for ( int k = 0; k < taps; k++ )
+			{
+				// Tap k is the pixel at offset k - radius + 1 from the floor.
+				final double w = kernel.applyAsDouble( k - radius + 1 - frac );
+				weights[ p * taps + k ] = w;
+				sum += w;
+			}
+			// Normalize so that constant regions are preserved.
+			for ( int k = 0; k < taps; k++ )
+				weights[ p * taps + k ] /= sum;
+		}
+	}
+
+	/**
+	 * Returns the number of pixels on each side of a sample position that
+	 * the kernel reads.
+	 */
+	int radius()
+	{
+		return radius;
+	}
+
+	/**
+	 * Returns the tabulated weights. The <code>2 * radius</code> weights of
+	 * the phase <code>p</code> start at index <code>p * 2 * radius</code>.
+	 * The weight of index <code>k</code> applies to the pixel at
+	 * <code>floor(x) + k - radius + 1</code>.
+	 */
+	double[] weights()
+	{
+		return weights;
+	}
+
+	/**
+	 * Returns the phase of the weights to use at the specified fractional
+	 * position, between 0 and 1.
+	 */
+	static int phase( final double frac )
+	{
+		return ( int ) ( frac * PHASES + 0.5 );
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+
+	private static double linear( final double x )
+	{
+		return Math.max( 0., 1. - Math.abs( x ) );
+	}
+
+	private static double cubic( final double x )
+	{
+		final double a = -0.5;
+		final double t = Math.abs( x );
+		if ( t <= 1. )
+			return ( ( a + 2. ) * t - ( a + 3. ) ) * t * t + 1.;
+		if ( t < 2. )
+			return ( ( a * t - 5. * a ) * t + 8. * a ) * t - 4. * a;
+		return 0.;
+	}
+
+	private static double lanczos3( final double x )
+	{
+		final double t = Math.abs( x );
+		if ( t < 1e-12 )
+			return 1.;
+		if ( t >= 3. )
+			return 0.;
+		final double px = Math.PI * t;
+		return 3. * Math.sin( px ) * Math.sin( px / 3. ) / ( px * px );
+	}
+}
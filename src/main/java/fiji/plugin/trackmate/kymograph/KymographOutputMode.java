@@ -0,0 +1,55 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+public enum KymographOutputMode
+{
+
+	/**
+	 * The output is an ImageJ hyperstack, with all its planes in memory.
+	 */
+	IN_MEMORY( "In memory" ),
+	/**
+	 * The output is a cell image cached on disk, displayed as a virtual
+	 * stack. Only the cells recently used are kept in memory.
+	 */
+	DISK_CACHED( "Disk-cached" ),
+	/**
+	 * The kymograph is displayed immediately, as a virtual stack whose rows
+	 * are computed the first time they are shown, and kept in a bounded
+	 * cache. Registered images are created in memory in this mode.
+	 */
+	ON_DEMAND( "On demand" );
+
+	private final String name;
+
+	KymographOutputMode( final String name )
+	{
+		this.name = name;
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+}
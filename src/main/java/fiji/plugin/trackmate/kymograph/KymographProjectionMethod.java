@@ -21,13 +21,22 @@
  */
 package fiji.plugin.trackmate.kymograph;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public enum KymographProjectionMethod
 {
 
 	MIP( "Max" ),
-	MEAN( "Mean" );
+	MEAN( "Mean" ),
+	SUM( "Sum" ),
+	MEDIAN( "Median" ),
+	/**
+	 * Projects the specified percentile of the intensities, linearly
+	 * interpolated between the two closest ranks.
+	 */
+	PERCENTILE( "Percentile" );
 
 	private final String name;
 
@@ -42,83 +51,697 @@ public enum KymographProjectionMethod
 		return name;
 	}
 
+	/**
+	 * Creates a new accumulator for this projection method.
+	 * 
+	 * @return a new accumulator.
+	 */
 	public Accumulator accumulator()
+	{
+		return accumulator( 256 );
+	}
+
+	/**
+	 * Creates a new accumulator for this projection method, with buffers
+	 * preallocated to accept lines up to the specified length. The buffers
+	 * grow if longer lines are accumulated.
+	 * 
+	 * @param capacity
+	 *            the initial capacity of the accumulator.
+	 * @return a new accumulator.
+	 */
+	public Accumulator accumulator( final int capacity )
+	{
+		return accumulator( capacity, 50., 0 );
+	}
+
+	/**
+	 * Creates a new accumulator for this projection method, with buffers
+	 * preallocated to accept lines up to the specified length.
+	 * <p>
+	 * The median and percentile accumulators keep the values accumulated at
+	 * each position, and sort them through a sorting network when there are
+	 * at most 16 of them, or with a selection algorithm otherwise. If the
+	 * values are known to be 8-bit integers, positions where more than 16
+	 * values are accumulated use a histogram instead, so that their memory
+	 * does not depend on the number of values. Otherwise, at most 1024 values
+	 * are kept at each position, and the quantile of positions where more are
+	 * accumulated is estimated from a uniform random sample of them.
+	 * 
+	 * @param capacity
+	 *            the initial capacity of the accumulator.
+	 * @param percentile
+	 *            the percentile to project, from 0 to 100. Only used by
+	 *            {@link #PERCENTILE}.
+	 * @param bitDepth
+	 *            the bit depth of the values, if they are integers taken
+	 *            from an ImageJ image, or 0 if they are not integers (for
+	 *            instance if they are interpolated).
+	 * @return a new accumulator.
+	 */
+	public Accumulator accumulator( final int capacity, final double percentile, final int bitDepth )
 	{
 		switch ( this )
 		{
 		case MEAN:
-			return new MeanAccumulator();
+			return new MeanAccumulator( capacity );
+		case SUM:
+			return new SumAccumulator( capacity );
+		case MEDIAN:
+			return rankAccumulator( capacity, 0.5, bitDepth );
+		case PERCENTILE:
+			return rankAccumulator( capacity, Math.max( 0., Math.min( 100., percentile ) ) / 100., bitDepth );
 		case MIP:
 		default:
-			return new MaxAccumulator();
+			return new MaxAccumulator( capacity );
 		}
 	}
 
+	private static Accumulator rankAccumulator( final int capacity, final double quantile, final int bitDepth )
+	{
+		if ( bitDepth == 8 )
+			return new HistogramAccumulator( capacity, quantile );
+		return new RankAccumulator( capacity, quantile );
+	}
+
+	/**
+	 * Accumulates the intensities of several lines into a single projected
+	 * line.
+	 * <p>
+	 * Accumulators are meant to be reused: they own their buffers, which are
+	 * allocated once and cleared by {@link #reset(int)}, so that accumulating
+	 * does not allocate. They are not thread-safe; use one instance per
+	 * thread.
+	 */
 	public static interface Accumulator
 	{
 
-		public void accumulate( double[] line );
+		/**
+		 * Clears this accumulator and prepares it to accumulate lines of the
+		 * specified length.
+		 * 
+		 * @param length
+		 *            the length of the lines to accumulate.
+		 */
+		public void reset( int length );
 
-		public double[] get();
+		/**
+		 * Returns the length of the projected line.
+		 * 
+		 * @return the length.
+		 */
+		public int length();
+
+		/**
+		 * Accumulates the specified value at the specified position along the
+		 * line. Positions outside of the line are ignored.
+		 * 
+		 * @param i
+		 *            the position along the line.
+		 * @param value
+		 *            the value to accumulate.
+		 */
+		public void accumulate( int i, double value );
+
+		/**
+		 * Returns the projected value at the specified position, or 0 if no
+		 * value was accumulated there.
+		 * 
+		 * @param i
+		 *            the position along the line.
+		 * @return the projected value.
+		 */
+		public double get( int i );
 	}
 
-	private static class MeanAccumulator implements Accumulator
+	/**
+	 * Base class of the accumulators, that counts the values accumulated at
+	 * each position and lets subclasses handle their own buffers.
+	 */
+	private static abstract class AbstractAccumulator implements Accumulator
+	{
+
+		/**
+		 * Number of values accumulated at each position.
+		 */
+		protected int[] count;
+
+		protected int length;
+
+		protected AbstractAccumulator( final int capacity )
+		{
+			this.count = new int[ capacity ];
+		}
+
+		@Override
+		public void reset( final int length )
+		{
+			this.length = length;
+			if ( count.length < length )
+			{
+				count = new int[ length ];
+				grow( length );
+			}
+			Arrays.fill( count, 0, length, 0 );
+			clear( length );
+		}
+
+		@Override
+		public int length()
+		{
+			return length;
+		}
+
+		@Override
+		public void accumulate( final int i, final double value )
+		{
+			if ( i < 0 || i >= length )
+				return;
+			add( i, value, count[ i ]++ );
+		}
+
+		@Override
+		public double get( final int i )
+		{
+			if ( count[ i ] == 0 )
+				return 0.;
+			return value( i, count[ i ] );
+		}
+
+		/**
+		 * Reallocates the buffers so that they can hold the specified length.
+		 */
+		protected abstract void grow( int capacity );
+
+		/**
+		 * Clears the buffers up to the specified length.
+		 */
+		protected abstract void clear( int length );
+
+		/**
+		 * Adds a value at position <code>i</code>, where <code>n</code>
+		 * values were already accumulated.
+		 */
+		protected abstract void add( int i, double value, int n );
+
+		/**
+		 * Returns the projected value at position <code>i</code>, where
+		 * <code>n &gt; 0</code> values were accumulated.
+		 */
+		protected abstract double value( int i, int n );
+	}
+
+	private static class MeanAccumulator extends AbstractAccumulator
 	{
 
 		private double[] sum;
 
-		private int n = 0;
+		private MeanAccumulator( final int capacity )
+		{
+			super( capacity );
+			this.sum = new double[ capacity ];
+		}
+
+		@Override
+		protected void grow( final int capacity )
+		{
+			sum = new double[ capacity ];
+		}
+
+		@Override
+		protected void clear( final int length )
+		{
+			Arrays.fill( sum, 0, length, 0. );
+		}
+
+		@Override
+		protected void add( final int i, final double value, final int n )
+		{
+			sum[ i ] += value;
+		}
+
+		@Override
+		protected double value( final int i, final int n )
+		{
+			return sum[ i ] / n;
+		}
+	}
+
+	private static class SumAccumulator extends AbstractAccumulator
+	{
+
+		private double[] sum;
+
+		private SumAccumulator( final int capacity )
+		{
+			super( capacity );
+			this.sum = new double[ capacity ];
+		}
+
+		@Override
+		protected void grow( final int capacity )
+		{
+			sum = new double[ capacity ];
+		}
+
+		@Override
+		protected void clear( final int length )
+		{
+			Arrays.fill( sum, 0, length, 0. );
+		}
+
+		@Override
+		protected void add( final int i, final double value, final int n )
+		{
+			sum[ i ] += value;
+		}
+
+		@Override
+		protected double value( final int i, final int n )
+		{
+			return sum[ i ];
+		}
+	}
+
+	private static class MaxAccumulator extends AbstractAccumulator
+	{
+
+		private double[] storage;
+
+		private MaxAccumulator( final int capacity )
+		{
+			super( capacity );
+			this.storage = new double[ capacity ];
+		}
+
+		@Override
+		protected void grow( final int capacity )
+		{
+			storage = new double[ capacity ];
+		}
+
+		@Override
+		protected void clear( final int length )
+		{}
+
+		@Override
+		protected void add( final int i, final double value, final int n )
+		{
+			if ( n == 0 || value > storage[ i ] )
+				storage[ i ] = value;
+		}
 
 		@Override
-		public void accumulate( final double[] line )
+		protected double value( final int i, final int n )
 		{
-			if ( sum == null )
+			return storage[ i ];
+		}
+	}
+
+	/**
+	 * Projects a quantile of the values accumulated at each position. The
+	 * values are stored in one fixed-depth slot per position, that only
+	 * grows if more values than ever before are accumulated at a position,
+	 * up to {@link #MAX_DEPTH} values. Past this, the slot keeps a uniform
+	 * random sample of the values of the position (reservoir sampling), and
+	 * the projected quantile is the one of the sample: the standard error on
+	 * its rank is at most 1.6% of the number of values, and the memory stays
+	 * bounded to 8 kB per position whatever the size of the band.
+	 */
+	private static class RankAccumulator extends AbstractAccumulator
+	{
+
+		/**
+		 * Sorting networks for 2, 4, 8 and 16 values, as flat lists of
+		 * compare-exchange pairs.
+		 */
+		private static final int[][] NETWORKS = new int[][] {
+				oddEvenMergeSort( 2 ),
+				oddEvenMergeSort( 4 ),
+				oddEvenMergeSort( 8 ),
+				oddEvenMergeSort( 16 ) };
+
+		private static final int NETWORK_SIZE = 16;
+
+		/**
+		 * Maximal number of values stored at each position.
+		 */
+		private static final int MAX_DEPTH = 1024;
+
+		private static final long SEED = 0x9E3779B97F4A7C15L;
+
+		private final double quantile;
+
+		/**
+		 * State of the generator that picks the values replaced in full
+		 * slots, seeded again at each reset so that the projection of a line
+		 * only depends on its values.
+		 */
+		private long seed = SEED;
+
+		private int capacity;
+
+		private int depth;
+
+		private double[] values;
+
+		private double[] work;
+
+		private RankAccumulator( final int capacity, final double quantile )
+		{
+			super( capacity );
+			this.quantile = quantile;
+			this.capacity = capacity;
+			this.depth = NETWORK_SIZE;
+			this.values = new double[ capacity * depth ];
+			this.work = new double[ NETWORK_SIZE ];
+		}
+
+		@Override
+		protected void grow( final int capacity )
+		{
+			this.capacity = capacity;
+			this.values = new double[ capacity * depth ];
+		}
+
+		@Override
+		protected void clear( final int length )
+		{
+			seed = SEED;
+		}
+
+		@Override
+		protected void add( final int i, final double value, final int n )
+		{
+			if ( n >= depth && depth < MAX_DEPTH )
+				deepen( Math.min( 2 * depth, MAX_DEPTH ) );
+			if ( n < depth )
 			{
-				sum = Arrays.copyOf( line, line.length );
-				n = 1;
+				values[ i * depth + n ] = value;
 				return;
 			}
 
-			n++;
-			for ( int i = 0; i < Math.max( line.length, sum.length ); i++ )
-				sum[ i ] += line[ i ];
+			// Full slot: the value replaces a stored one with probability
+			// depth / (n + 1).
+			final long j = nextLong() % ( n + 1 );
+			if ( j < depth )
+				values[ i * depth + ( int ) j ] = value;
+		}
+
+		/**
+		 * Returns a non-negative pseudo-random number (xorshift64*).
+		 */
+		private long nextLong()
+		{
+			seed ^= seed >>> 12;
+			seed ^= seed << 25;
+			seed ^= seed >>> 27;
+			return ( seed * 0x2545F4914F6CDD1DL ) >>> 1;
+		}
+
+		/**
+		 * Increases the number of values that can be stored at each
+		 * position, keeping the values already accumulated.
+		 */
+		private void deepen( final int newDepth )
+		{
+			final double[] newValues = new double[ capacity * newDepth ];
+			for ( int i = 0; i < length; i++ )
+				System.arraycopy( values, i * depth, newValues, i * newDepth, Math.min( count[ i ], depth ) );
+			values = newValues;
+			depth = newDepth;
+			if ( work.length < depth )
+				work = new double[ depth ];
 		}
 
 		@Override
-		public double[] get()
+		protected double value( final int i, final int total )
 		{
-			if ( sum == null )
-				return null;
+			final int n = Math.min( total, depth );
+			System.arraycopy( values, i * depth, work, 0, n );
+			final double pos = quantile * ( n - 1 );
+			final int lo = ( int ) Math.floor( pos );
+			final double frac = pos - lo;
+			final double vlo;
+			final double vhi;
+			if ( n <= NETWORK_SIZE )
+			{
+				sort( work, n );
+				vlo = work[ lo ];
+				vhi = frac > 0. ? work[ lo + 1 ] : vlo;
+			}
+			else
+			{
+				vlo = select( work, n, lo );
+				if ( frac > 0. )
+				{
+					// After selection, the next rank is the min of the upper part.
+					double min = work[ lo + 1 ];
+					for ( int k = lo + 2; k < n; k++ )
+						min = Math.min( min, work[ k ] );
+					vhi = min;
+				}
+				else
+				{
+					vhi = vlo;
+				}
+			}
+			return vlo + frac * ( vhi - vlo );
+		}
+
+		/**
+		 * Sorts the first <code>n &le; 16</code> elements of the array with
+		 * the smallest sorting network that fits them, padding with positive
+		 * infinity.
+		 */
+		private static void sort( final double[] a, final int n )
+		{
+			if ( n < 2 )
+				return;
+			int size = 2;
+			int k = 0;
+			while ( size < n )
+			{
+				size *= 2;
+				k++;
+			}
+			Arrays.fill( a, n, size, Double.POSITIVE_INFINITY );
+			final int[] network = NETWORKS[ k ];
+			for ( int c = 0; c < network.length; c += 2 )
+			{
+				final int p = network[ c ];
+				final int q = network[ c + 1 ];
+				if ( a[ p ] > a[ q ] )
+				{
+					final double tmp = a[ p ];
+					a[ p ] = a[ q ];
+					a[ q ] = tmp;
+				}
+			}
+		}
 
-			for ( int i = 0; i < sum.length; i++ )
-				sum[ i ] /= n;
+		/**
+		 * Partially reorders the first <code>n</code> elements of the array
+		 * so that the element of rank <code>k</code> is at position
+		 * <code>k</code>, smaller elements before it and larger ones after,
+		 * and returns it.
+		 */
+		private static double select( final double[] a, final int n, final int k )
+		{
+			int left = 0;
+			int right = n - 1;
+			while ( right > left )
+			{
+				// Median of three pivot.
+				final int mid = ( left + right ) >>> 1;
+				if ( a[ mid ] < a[ left ] )
+					swap( a, mid, left );
+				if ( a[ right ] < a[ left ] )
+					swap( a, right, left );
+				if ( a[ right ] < a[ mid ] )
+					swap( a, right, mid );
+				final double pivot = a[ mid ];
 
-			return sum;
+				int i = left;
+				int j = right;
+				while ( i <= j )
+				{
+					while ( a[ i ] < pivot )
+						i++;
+					while ( a[ j ] > pivot )
+						j--;
+					if ( i <= j )
+					{
+						swap( a, i, j );
+						i++;
+						j--;
+					}
+				}
+				if ( k <= j )
+					right = j;
+				else if ( k >= i )
+					left = i;
+				else
+					break;
+			}
+			return a[ k ];
+		}
+
+		private static void swap( final double[] a, final int i, final int j )
+		{
+			final double tmp = a[ i ];
+			a[ i ] = a[ j ];
+			a[ j ] = tmp;
+		}
+
+		/**
+		 * Returns the compare-exchange pairs of Batcher's odd-even merge sort
+		 * for <code>n</code> elements, <code>n</code> being a power of 2.
+		 */
+		private static int[] oddEvenMergeSort( final int n )
+		{
+			final List< Integer > pairs = new ArrayList<>();
+			for ( int p = 1; p < n; p <<= 1 )
+				for ( int k = p; k >= 1; k >>= 1 )
+					for ( int j = k % p; j + k < n; j += 2 * k )
+						for ( int i = 0; i < Math.min( k, n - j - k ); i++ )
+							if ( ( i + j ) / ( 2 * p ) == ( i + j + k ) / ( 2 * p ) )
+							{
+								pairs.add( i + j );
+								pairs.add( i + j + k );
+							}
+			final int[] network = new int[ pairs.size() ];
+			for ( int i = 0; i < network.length; i++ )
+				network[ i ] = pairs.get( i );
+			return network;
 		}
 	}
 
-	private static class MaxAccumulator implements Accumulator
+	/**
+	 * Projects a quantile of 8-bit values. The first values accumulated at
+	 * each position are stored and sorted with a sorting network, like the
+	 * {@link RankAccumulator} does. Positions where more values are
+	 * accumulated move them to a 256-bin histogram. Only the histograms of
+	 * these positions are cleared when the accumulator is reset.
+	 */
+	private static class HistogramAccumulator extends AbstractAccumulator
 	{
 
-		private double[] storage;
+		private static final int NBINS = 256;
+
+		/**
+		 * Number of values stored at each position before they are moved to
+		 * a histogram.
+		 */
+		private static final int NVALUES = RankAccumulator.NETWORK_SIZE;
+
+		private final double quantile;
+
+		private double[] values;
+
+		private final double[] work;
+
+		/**
+		 * The histograms, allocated when the first position needs one.
+		 */
+		private int[] bins;
+
+		/**
+		 * The positions whose values are in the histograms.
+		 */
+		private int[] binned;
+
+		private int nBinned;
+
+		private HistogramAccumulator( final int capacity, final double quantile )
+		{
+			super( capacity );
+			this.quantile = quantile;
+			this.values = new double[ capacity * NVALUES ];
+			this.work = new double[ NVALUES ];
+			this.binned = new int[ capacity ];
+		}
 
 		@Override
-		public void accumulate( final double[] line )
+		protected void grow( final int capacity )
 		{
-			if ( storage == null )
+			values = new double[ capacity * NVALUES ];
+			bins = null;
+			binned = new int[ capacity ];
+			nBinned = 0;
+		}
+
+		@Override
+		protected void clear( final int length )
+		{
+			for ( int k = 0; k < nBinned; k++ )
+				Arrays.fill( bins, binned[ k ] * NBINS, ( binned[ k ] + 1 ) * NBINS, 0 );
+			nBinned = 0;
+		}
+
+		@Override
+		protected void add( final int i, final double value, final int n )
+		{
+			final int bin = ( int ) Math.max( 0, Math.min( NBINS - 1, Math.round( value ) ) );
+			if ( n < NVALUES )
 			{
-				storage = Arrays.copyOf( line, line.length );
+				values[ i * NVALUES + n ] = bin;
 				return;
 			}
+			if ( n == NVALUES )
+				moveToHistogram( i );
+			bins[ i * NBINS + bin ]++;
+		}
 
-			for ( int i = 0; i < Math.max( line.length, storage.length ); i++ )
-				storage[ i ] = Math.max( storage[ i ], line[ i ] );
+		/**
+		 * Moves the values stored at the specified position to its
+		 * histogram.
+		 */
+		private void moveToHistogram( final int i )
+		{
+			if ( bins == null )
+				bins = new int[ binned.length * NBINS ];
+			binned[ nBinned++ ] = i;
+			for ( int k = 0; k < NVALUES; k++ )
+				bins[ i * NBINS + ( int ) values[ i * NVALUES + k ] ]++;
 		}
 
 		@Override
-		public double[] get()
+		protected double value( final int i, final int n )
 		{
-			return storage;
+			final double pos = quantile * ( n - 1 );
+			final int lo = ( int ) Math.floor( pos );
+			final double frac = pos - lo;
+			if ( n <= NVALUES )
+			{
+				System.arraycopy( values, i * NVALUES, work, 0, n );
+				RankAccumulator.sort( work, n );
+				final double vlo = work[ lo ];
+				if ( frac == 0. )
+					return vlo;
+				return vlo + frac * ( work[ lo + 1 ] - vlo );
+			}
+			final int offset = i * NBINS;
+			final int vlo = binOfRank( offset, lo );
+			if ( frac == 0. )
+				return vlo;
+			final int vhi = binOfRank( offset, lo + 1 );
+			return vlo + frac * ( vhi - vlo );
+		}
+
+		/**
+		 * Returns the bin holding the value of the specified rank.
+		 */
+		private int binOfRank( final int offset, final int rank )
+		{
+			int cumsum = 0;
+			for ( int b = 0; b < NBINS; b++ )
+			{
+				cumsum += bins[ offset + b ];
+				if ( cumsum > rank )
+					return b;
+			}
+			return NBINS - 1;
 		}
 	}
 }
@@ -0,0 +1,50 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+public enum KymographSamplingMethod
+{
+
+	/**
+	 * Samples the pixels on the Bresenham line between the two tracks. The
+	 * number of samples depends on the angle of the line.
+	 */
+	PIXELS( "Pixels" ),
+	/**
+	 * Samples at a constant physical step along the line between the two
+	 * tracks, with linear interpolation.
+	 */
+	INTERPOLATED( "Interpolated" );
+
+	private final String name;
+
+	KymographSamplingMethod( final String name )
+	{
+		this.name = name;
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+}
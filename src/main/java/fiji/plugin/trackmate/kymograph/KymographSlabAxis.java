@@ -0,0 +1,55 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+/**
+ * The third axis of the slab resampled around the line joining two tracks,
+ * for registered images of 3D stacks. The first two axes are the line and its
+ * normal in the XY plane.
+ */
+public enum KymographSlabAxis
+{
+
+	/**
+	 * The Z axis of the source. The slab is vertical and follows the line in
+	 * Z, so its planes are sheared if the line is not horizontal.
+	 */
+	Z( "Z" ),
+	/**
+	 * The axis normal to both the line and its normal in the XY plane. The
+	 * slab is a rotated box around the line.
+	 */
+	NORMAL( "Normal to the line" );
+
+	private final String name;
+
+	KymographSlabAxis( final String name )
+	{
+		this.name = name;
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+}
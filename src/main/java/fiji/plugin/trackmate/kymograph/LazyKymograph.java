@@ -0,0 +1,212 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+import ij.ImagePlus;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions.CacheType;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * A kymograph whose rows are computed the first time they are accessed.
+ * <p>
+ * The kymograph is a cached cell image with dimensions X, Y and C, in which
+ * each cell is one row, for all channels. Rows are sampled by the same code
+ * as the {@link KymographCreator}, from the snapshot of the creator taken when
+ * the lazy kymograph is created, and the least recently used are evicted when
+ * the cache is full. Since the snapshot never changes, rows computed again
+ * after they were evicted are identical to the first ones. Wrapped as a
+ * virtual stack, this lets a kymograph of a large movie be displayed
+ * immediately.
+ * 
+ * @param <T>
+ *            the pixel type of the kymograph.
+ */
+public class LazyKymograph< T extends RealType< T > & NativeType< T > >
+{
+
+	/**
+	 * Number of rows kept in the cache if the creation parameters do not
+	 * specify it.
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 1024;
+
+	private final CachedCellImg< T, ? > img;
+
+	private final ImagePlus imp;
+
+	/**
+	 * The kymograph this one replaces, whose cached rows are reused for the
+	 * time-points that did not change, or <code>null</code>.
+	 */
+	private volatile LazyKymograph< T > previous;
+
+	/**
+	 * Creates a lazy kymograph sampled from the specified snapshot.
+	 */
+	LazyKymograph( final KymographCreator.Snapshot snapshot, final String title )
+	{
+		this( snapshot, title, null, new int[ 0 ] );
+	}
+
+	/**
+	 * Creates a lazy kymograph sampled from the specified snapshot, that
+	 * replaces a previous one of the same size after an edit of the model.
+	 * The rows of the time-points that did not change are copied from the
+	 * cache of the previous kymograph when they are still in it.
+	 * 
+	 * @param snapshot
+	 *            the snapshot to sample from.
+	 * @param title
+	 *            the title of the image.
+	 * @param previous
+	 *            the kymograph to replace, or <code>null</code>.
+	 * @param changed
+	 *            the time-points whose rows changed since the previous
+	 *            kymograph.
+	 */
+	@SuppressWarnings( "unchecked" )
+	LazyKymograph( final KymographCreator.Snapshot snapshot, final String title, final LazyKymograph< ? > previous, final int[] changed )
+	{
+		this.previous = ( LazyKymograph< T > ) previous;
+		if ( previous != null )
+			// Only one generation back, so that replaced kymographs can be collected.
+			previous.previous = null;
+		this.img = create( snapshot, OutputImage.< T >type( snapshot.imp.getBitDepth() ), changedRows( snapshot, changed ) );
+		this.imp = OutputImage.wrap( title, img );
+	}
+
+	/**
+	 * Returns the kymograph, with dimensions X, Y and C.
+	 */
+	public RandomAccessibleInterval< T > getImg()
+	{
+		return img;
+	}
+
+	/**
+	 * Returns the kymograph wrapped as a virtual {@link ImagePlus}.
+	 */
+	public ImagePlus getImagePlus()
+	{
+		return imp;
+	}
+
+	/**
+	 * Empties the row cache, so that rows are computed again the next time
+	 * they are accessed.
+	 */
+	public void invalidate()
+	{
+		img.getCache().invalidateAll();
+	}
+
+	/**
+	 * Evicts the specified row from the cache, so that it is computed again
+	 * the next time it is accessed.
+	 * 
+	 * @param y
+	 *            the row.
+	 */
+	public void invalidate( final int y )
+	{
+		// Cells are single rows, so the cell index is the row.
+		img.getCache().invalidate( ( long ) y );
+	}
+
+	private static boolean[] changedRows( final KymographCreator.Snapshot snapshot, final int[] changed )
+	{
+		final boolean[] rows = new boolean[ snapshot.getHeight() ];
+		for ( final int tp : changed )
+			if ( tp >= snapshot.firstFrame && tp <= snapshot.lastFrame )
+				rows[ tp - snapshot.firstFrame ] = true;
+		return rows;
+	}
+
+	/**
+	 * Copies the specified cell from the cache of the previous kymograph, if
+	 * it is there.
+	 * 
+	 * @return <code>true</code> if the cell was copied.
+	 */
+	private boolean copyFromPrevious( final SingleCellArrayImg< T, ? > cell )
+	{
+		final LazyKymograph< T > prev = previous;
+		if ( prev == null || prev.img.getCache().getIfPresent( cell.min( 1 ) ) == null )
+			return false;
+
+		final RandomAccess< T > ra = prev.img.randomAccess();
+		final Cursor< T > cursor = cell.localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			ra.setPosition( cursor );
+			cursor.get().set( ra.get() );
+		}
+		return true;
+	}
+
+	private CachedCellImg< T, ? > create( final KymographCreator.Snapshot snapshot, final T type, final boolean[] changed )
+	{
+		final ImagePlus source = snapshot.imp;
+		final int nChannels = source.getNChannels();
+		final int width = snapshot.width;
+		final int firstFrame = snapshot.firstFrame;
+
+		// Rows are loaded by the threads displaying them, usually one.
+		final SliceViews< T > views = new SliceViews<>( source, 1 );
+		final ThreadLocal< KymographCreator.RowExtractor< T > > extractors =
+				ThreadLocal.withInitial( () -> new KymographCreator.RowExtractor<>( snapshot, views.accessors(), null ) );
+		final CellLoader< T > loader = ( final SingleCellArrayImg< T, ? > cell ) -> {
+			// Cells are single rows, so the cell index is the row.
+			if ( !changed[ ( int ) cell.min( 1 ) ] && copyFromPrevious( cell ) )
+				return;
+
+			final PlaneWriter[] planes = new PlaneWriter[ nChannels ];
+			for ( int c = 0; c < nChannels; c++ )
+				planes[ c ] = PlaneWriter.create( Views.hyperSlice( cell, 2, c ) );
+			final KymographCreator.RowExtractor< T > extractor = extractors.get();
+			for ( long y = cell.min( 1 ); y <= cell.max( 1 ); y++ )
+				extractor.extract( firstFrame + ( int ) y, planes );
+		};
+
+		final int maxCachedCells = snapshot.params.maxCachedCells;
+		final ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+				.cellDimensions( width, 1, nChannels )
+				.cacheType( CacheType.BOUNDED )
+				.maxCacheSize( maxCachedCells > 0 ? maxCachedCells : DEFAULT_CACHE_SIZE );
+		final long[] dims = new long[] { width, snapshot.getHeight(), nChannels };
+		return new ReadOnlyCachedCellImgFactory( options ).create( dims, type, loader );
+	}
+}
@@ -0,0 +1,228 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.DiskCachedCellImg;
+import net.imglib2.cache.img.DiskCachedCellImgFactory;
+import net.imglib2.cache.img.DiskCachedCellImgOptions;
+import net.imglib2.cache.img.DiskCachedCellImgOptions.CacheType;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * The image the creators write their output into, as a 5D hyperstack
+ * (X, Y, C, Z, T) with the pixel type of the source image.
+ * <p>
+ * Depending on the {@link KymographOutputMode}, the planes are ImageJ
+ * processors held in memory, or planes of a {@link DiskCachedCellImg} that
+ * only keeps its recently used cells in memory and is displayed as a virtual
+ * stack.
+ */
+public abstract class OutputImage
+{
+
+	protected final ImagePlus imp;
+
+	private OutputImage( final ImagePlus imp )
+	{
+		this.imp = imp;
+	}
+
+	/**
+	 * Returns the output as an {@link ImagePlus}. It is a
+	 * {@link CompositeImage} if there is more than one channel.
+	 */
+	public ImagePlus getImagePlus()
+	{
+		return imp;
+	}
+
+	/**
+	 * Returns a writer for the specified plane. Writers are cheap to create,
+	 * and each thread should use its own.
+	 * 
+	 * @param c
+	 *            the channel, 0-based.
+	 * @param z
+	 *            the Z-slice, 0-based.
+	 * @param t
+	 *            the frame, 0-based.
+	 * @return a new writer.
+	 */
+	public abstract PlaneWriter writer( int c, int z, int t );
+
+	/**
+	 * Creates an output image.
+	 * 
+	 * @param title
+	 *            the title of the image.
+	 * @param width
+	 *            the width of the image.
+	 * @param height
+	 *            the height of the image.
+	 * @param nChannels
+	 *            the number of channels.
+	 * @param nSlices
+	 *            the number of Z-slices.
+	 * @param nFrames
+	 *            the number of frames.
+	 * @param bitDepth
+	 *            the bit depth of the image, as in ImageJ.
+	 * @param params
+	 *            the creation parameters, that specify the output mode.
+	 * @return a new output image.
+	 */
+	public static OutputImage create(
+			final String title,
+			final int width,
+			final int height,
+			final int nChannels,
+			final int nSlices,
+			final int nFrames,
+			final int bitDepth,
+			final KymographCreationParams params )
+	{
+		if ( params.outputMode == KymographOutputMode.DISK_CACHED )
+		{
+			final long[] dims = new long[] { width, height, nChannels, nSlices, nFrames };
+			return diskCached( title, dims, bitDepth, params );
+		}
+		return new InMemoryOutput( IJ.createHyperStack( title, width, height, nChannels, nSlices, nFrames, bitDepth ) );
+	}
+
+	private static < T extends RealType< T > & NativeType< T > > OutputImage diskCached( final String title, final long[] dims, final int bitDepth, final KymographCreationParams params )
+	{
+		final T type = type( bitDepth );
+		return new DiskCachedOutput<>( title, dims, type, params );
+	}
+
+	/**
+	 * Returns the ImgLib2 pixel type matching the specified ImageJ bit depth.
+	 * 32-bit images are mapped to {@link FloatType}. RGB images are not
+	 * supported.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the bit depth is not 8, 16 or 32.
+	 */
+	@SuppressWarnings( "unchecked" )
+	static < T extends RealType< T > & NativeType< T > > T type( final int bitDepth )
+	{
+		switch ( bitDepth )
+		{
+		case 8:
+			return ( T ) new UnsignedByteType();
+		case 16:
+			return ( T ) new UnsignedShortType();
+		case 32:
+			return ( T ) new FloatType();
+		default:
+			throw new IllegalArgumentException( "Unsupported bit depth: " + bitDepth );
+		}
+	}
+
+	/**
+	 * Wraps the specified image as a virtual {@link ImagePlus}. Dimensions
+	 * after the third one are taken as Z and T, and are optional.
+	 * 
+	 * @param title
+	 *            the title of the image.
+	 * @param img
+	 *            the image to wrap, with dimensions X, Y, C, Z, T.
+	 * @return a new virtual {@link ImagePlus}, a {@link CompositeImage} if
+	 *         there is more than one channel.
+	 */
+	static < T extends RealType< T > & NativeType< T > > ImagePlus wrap( final String title, final RandomAccessibleInterval< T > img )
+	{
+		final ImagePlus imp = ImageJFunctions.wrap( img, title );
+		final int nChannels = ( int ) img.dimension( 2 );
+		final int nSlices = img.numDimensions() > 3 ? ( int ) img.dimension( 3 ) : 1;
+		final int nFrames = img.numDimensions() > 4 ? ( int ) img.dimension( 4 ) : 1;
+		imp.setDimensions( nChannels, nSlices, nFrames );
+		imp.setOpenAsHyperStack( true );
+		if ( nChannels > 1 )
+			return new CompositeImage( imp );
+		return imp;
+	}
+
+	private static final class InMemoryOutput extends OutputImage
+	{
+
+		private InMemoryOutput( final ImagePlus imp )
+		{
+			super( imp );
+		}
+
+		@Override
+		public PlaneWriter writer( final int c, final int z, final int t )
+		{
+			return PlaneWriter.create( imp.getStack().getProcessor( imp.getStackIndex( c + 1, z + 1, t + 1 ) ) );
+		}
+	}
+
+	private static final class DiskCachedOutput< T extends RealType< T > & NativeType< T > > extends OutputImage
+	{
+
+		private final DiskCachedCellImg< T, ? > img;
+
+		private DiskCachedOutput( final String title, final long[] dims, final T type, final KymographCreationParams params )
+		{
+			this( title, create( dims, type, params ) );
+		}
+
+		private DiskCachedOutput( final String title, final DiskCachedCellImg< T, ? > img )
+		{
+			super( wrap( title, img ) );
+			this.img = img;
+		}
+
+		@Override
+		public PlaneWriter writer( final int c, final int z, final int t )
+		{
+			RandomAccessibleInterval< T > plane = img;
+			plane = Views.hyperSlice( plane, 4, t );
+			plane = Views.hyperSlice( plane, 3, z );
+			plane = Views.hyperSlice( plane, 2, c );
+			return PlaneWriter.create( plane );
+		}
+
+		private static < T extends RealType< T > & NativeType< T > > DiskCachedCellImg< T, ? > create( final long[] dims, final T type, final KymographCreationParams params )
+		{
+			final int cellSize = Math.max( 1, params.cellSize );
+			final DiskCachedCellImgOptions options = DiskCachedCellImgOptions.options()
+					.cellDimensions( cellSize, cellSize, 1, 1, 1 )
+					.dirtyAccesses( true );
+			final DiskCachedCellImgOptions cacheOptions = params.maxCachedCells > 0
+					? options.cacheType( CacheType.BOUNDED ).maxCacheSize( params.maxCachedCells )
+					: options.cacheType( CacheType.SOFTREF );
+			return new DiskCachedCellImgFactory<>( type, cacheOptions ).create( dims );
+		}
+	}
+}
@@ -0,0 +1,255 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+import java.util.List;
+
+import fiji.plugin.trackmate.kymograph.KymographProjectionMethod.Accumulator;
+
+/**
+ * The points to sample along a curved path, at a constant physical step along
+ * its arc length, with the normal of the path in the XY plane at each of
+ * them.
+ * <p>
+ * The path goes through a list of vertices, either as a polyline or as a
+ * Catmull-Rom spline. The table is computed once per frame, and read for all
+ * the channels and all the parallel lines of a thick path.
+ */
+public class PathSamplingTable
+{
+
+	/**
+	 * Number of segments each span of the spline is approximated with.
+	 */
+	private static final int SPLINE_SUBDIVISIONS = 16;
+
+	private final double[] xs;
+
+	private final double[] ys;
+
+	private final double[] zs;
+
+	private final double[] nxs;
+
+	private final double[] nys;
+
+	private PathSamplingTable( final double[] xs, final double[] ys, final double[] zs, final double[] nxs, final double[] nys )
+	{
+		this.xs = xs;
+		this.ys = ys;
+		this.zs = zs;
+		this.nxs = nxs;
+		this.nys = nys;
+	}
+
+	/**
+	 * Returns the number of points sampled along the path.
+	 * 
+	 * @return the number of points.
+	 */
+	public int size()
+	{
+		return xs.length;
+	}
+
+	/**
+	 * Returns the X coordinate of the specified point, in pixel coordinates.
+	 * 
+	 * @param i
+	 *            the index of the point.
+	 * @return the X coordinate.
+	 */
+	public double getX( final int i )
+	{
+		return xs[ i ];
+	}
+
+	/**
+	 * Returns the Y coordinate of the specified point, in pixel coordinates.
+	 * 
+	 * @param i
+	 *            the index of the point.
+	 * @return the Y coordinate.
+	 */
+	public double getY( final int i )
+	{
+		return ys[ i ];
+	}
+
+	/**
+	 * Samples the path and the parallel paths shifted along the normal by one
+	 * pixel increments, up to the specified span, in all the specified
+	 * channels, with linear interpolation. The accumulators must have been
+	 * reset to the size of this table.
+	 * 
+	 * @param samplers
+	 *            the samplers to read from, one per channel.
+	 * @param span
+	 *            the number of parallel paths on each side of the path.
+	 * @param values
+	 *            a buffer for the values of one point, one per channel.
+	 * @param accumulators
+	 *            the accumulators, one per channel.
+	 */
+	public void accumulate( final SliceSampler[] samplers, final int span, final double[] values, final Accumulator[] accumulators )
+	{
+		for ( int u = -span; u <= span; u++ )
+		{
+			for ( int i = 0; i < xs.length; i++ )
+			{
+				SliceSampler.interpolate( samplers, xs[ i ] + u * nxs[ i ], ys[ i ] + u * nys[ i ], zs[ i ], values );
+				for ( int c = 0; c < values.length; c++ )
+					accumulators[ c ].accumulate( i, values[ c ] );
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of points that a table for the specified path would
+	 * have, without computing them.
+	 * 
+	 * @param vertices
+	 *            the vertices of the path, in pixel coordinates, with 2 or 3
+	 *            elements.
+	 * @param calibration
+	 *            the pixel sizes.
+	 * @param step
+	 *            the step between two points, in physical units.
+	 * @param spline
+	 *            whether the path is a spline or a polyline.
+	 * @return the number of points.
+	 */
+	public static int size( final List< double[] > vertices, final double[] calibration, final double step, final boolean spline )
+	{
+		final double[][] path = densify( vertices, calibration, spline );
+		double length = 0.;
+		for ( int j = 1; j < path.length; j++ )
+			length += distance( path[ j - 1 ], path[ j ] );
+		return ( int ) Math.floor( length / step ) + 1;
+	}
+
+	/**
+	 * Computes the sampling table of the specified path.
+	 * 
+	 * @param vertices
+	 *            the vertices of the path, in pixel coordinates, with 2 or 3
+	 *            elements.
+	 * @param calibration
+	 *            the pixel sizes.
+	 * @param step
+	 *            the step between two points, in physical units.
+	 * @param spline
+	 *            whether the path is a spline or a polyline.
+	 * @return a new table.
+	 */
+	public static PathSamplingTable create( final List< double[] > vertices, final double[] calibration, final double step, final boolean spline )
+	{
+		final double[][] path = densify( vertices, calibration, spline );
+
+		// Cumulative arc length.
+		final double[] cumulative = new double[ path.length ];
+		for ( int j = 1; j < path.length; j++ )
+			cumulative[ j ] = cumulative[ j - 1 ] + distance( path[ j - 1 ], path[ j ] );
+		final double length = cumulative[ path.length - 1 ];
+		final int n = ( int ) Math.floor( length / step ) + 1;
+
+		final double[] xs = new double[ n ];
+		final double[] ys = new double[ n ];
+		final double[] zs = new double[ n ];
+		final double[] nxs = new double[ n ];
+		final double[] nys = new double[ n ];
+		int j = 0;
+		for ( int i = 0; i < n; i++ )
+		{
+			final double s = i * step;
+			// Segment holding this arc length, skipping empty segments.
+			while ( j < path.length - 2 && ( cumulative[ j + 1 ] < s || cumulative[ j + 1 ] == cumulative[ j ] ) )
+				j++;
+
+			final double[] p0 = path[ j ];
+			final double[] p1 = path[ Math.min( j + 1, path.length - 1 ) ];
+			final double segment = cumulative[ Math.min( j + 1, path.length - 1 ) ] - cumulative[ j ];
+			final double t = segment == 0. ? 0. : Math.min( 1., ( s - cumulative[ j ] ) / segment );
+			xs[ i ] = ( p0[ 0 ] + t * ( p1[ 0 ] - p0[ 0 ] ) ) / calibration[ 0 ];
+			ys[ i ] = ( p0[ 1 ] + t * ( p1[ 1 ] - p0[ 1 ] ) ) / calibration[ 1 ];
+			zs[ i ] = ( p0[ 2 ] + t * ( p1[ 2 ] - p0[ 2 ] ) ) / calibration[ 2 ];
+
+			// Normal in the XY plane, in pixel coordinates.
+			final double tx = ( p1[ 0 ] - p0[ 0 ] ) / calibration[ 0 ];
+			final double ty = ( p1[ 1 ] - p0[ 1 ] ) / calibration[ 1 ];
+			final double l = Math.sqrt( tx * tx + ty * ty );
+			nxs[ i ] = l == 0. ? 0. : -ty / l;
+			nys[ i ] = l == 0. ? 1. : tx / l;
+		}
+		return new PathSamplingTable( xs, ys, zs, nxs, nys );
+	}
+
+	/**
+	 * Returns the points of the path in physical coordinates, with 3
+	 * elements. For a spline, each span between two vertices is subdivided.
+	 */
+	private static double[][] densify( final List< double[] > vertices, final double[] calibration, final boolean spline )
+	{
+		final int nv = vertices.size();
+		final double[][] points = new double[ nv ][ 3 ];
+		for ( int v = 0; v < nv; v++ )
+		{
+			final double[] vertex = vertices.get( v );
+			for ( int d = 0; d < vertex.length && d < 3; d++ )
+				points[ v ][ d ] = vertex[ d ] * calibration[ d ];
+		}
+		if ( !spline || nv < 3 )
+			return points;
+
+		// Uniform Catmull-Rom spline, with the end vertices repeated.
+		final double[][] path = new double[ ( nv - 1 ) * SPLINE_SUBDIVISIONS + 1 ][ 3 ];
+		for ( int v = 0; v < nv - 1; v++ )
+		{
+			final double[] p0 = points[ Math.max( 0, v - 1 ) ];
+			final double[] p1 = points[ v ];
+			final double[] p2 = points[ v + 1 ];
+			final double[] p3 = points[ Math.min( nv - 1, v + 2 ) ];
+			for ( int k = 0; k < SPLINE_SUBDIVISIONS; k++ )
+			{
+				final double t = ( double ) k / SPLINE_SUBDIVISIONS;
+				final double t2 = t * t;
+				final double t3 = t2 * t;
+				final double[] p = path[ v * SPLINE_SUBDIVISIONS + k ];
+				for ( int d = 0; d < 3; d++ )
+					p[ d ] = 0.5 * ( 2. * p1[ d ]
+							+ ( -p0[ d ] + p2[ d ] ) * t
+							+ ( 2. * p0[ d ] - 5. * p1[ d ] + 4. * p2[ d ] - p3[ d ] ) * t2
+							+ ( -p0[ d ] + 3. * p1[ d ] - 3. * p2[ d ] + p3[ d ] ) * t3 );
+			}
+		}
+		path[ path.length - 1 ] = points[ nv - 1 ].clone();
+		return path;
+	}
+
+	private static double distance( final double[] p, final double[] q )
+	{
+		final double dx = q[ 0 ] - p[ 0 ];
+		final double dy = q[ 1 ] - p[ 1 ];
+		final double dz = q[ 2 ] - p[ 2 ];
+		return Math.sqrt( dx * dx + dy * dy + dz * dz );
+	}
+}
@@ -0,0 +1,218 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Loads the planes of a virtual stack ahead of the threads that sample them,
+ * and keeps them in a bounded cache.
+ * <p>
+ * Each read of a virtual stack plane blocks on I/O. The extraction visits
+ * frames in order, so when a thread moves to a frame, the planes of the
+ * following frames are requested in the background, and are usually ready
+ * when the thread reaches them. Planes are read one at a time, because the
+ * readers behind virtual stacks are generally not thread-safe, and the least
+ * recently used planes are evicted when the cache is full.
+ * <p>
+ * ImageJ virtual stacks only give access to whole planes, so planes are
+ * always loaded entirely.
+ */
+public class PlanePrefetcher
+{
+
+	/**
+	 * Number of frames loaded ahead of the frame a thread moves to.
+	 */
+	public static final int LOOKAHEAD = 2;
+
+	/**
+	 * Number of frames of planes kept in the cache by default, and at least.
+	 */
+	public static final int DEFAULT_CACHED_FRAMES = 32;
+
+	/**
+	 * Background loading threads, shared by all prefetchers. Daemon threads,
+	 * so that they do not prevent the JVM from exiting.
+	 */
+	private static final ExecutorService LOADERS = Executors.newFixedThreadPool( 2, r -> {
+		final Thread thread = new Thread( r, "TrackMate-Kymograph-plane-prefetcher" );
+		thread.setDaemon( true );
+		return thread;
+	} );
+
+	private final ImagePlus imp;
+
+	private final ImageStack stack;
+
+	private final Map< Integer, CompletableFuture< Object > > planes;
+
+	/**
+	 * Creates a prefetcher for the specified image, that keeps the planes of
+	 * the specified number of frames.
+	 * 
+	 * @param imp
+	 *            the image.
+	 * @param cachedFrames
+	 *            the number of frames whose planes, for all channels and
+	 *            Z-slices, can be cached.
+	 */
+	public PlanePrefetcher( final ImagePlus imp, final int cachedFrames )
+	{
+		this.imp = imp;
+		this.stack = imp.getStack();
+		final int capacity = Math.max( 1, cachedFrames ) * imp.getNChannels() * imp.getNSlices();
+		this.planes = new LinkedHashMap< Integer, CompletableFuture< Object > >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< Integer, CompletableFuture< Object > > eldest )
+			{
+				return size() > capacity;
+			}
+		};
+	}
+
+	public PlanePrefetcher( final ImagePlus imp )
+	{
+		this( imp, DEFAULT_CACHED_FRAMES );
+	}
+
+	/**
+	 * Returns the number of frames to cache for the specified number of
+	 * threads sampling the image: each thread needs the frame it samples and
+	 * the ones loaded ahead of it, and threads may sample distant frames.
+	 * 
+	 * @param numThreads
+	 *            the number of threads sampling the image.
+	 * @return the number of frames, at least {@link #DEFAULT_CACHED_FRAMES}.
+	 */
+	public static int cachedFrames( final int numThreads )
+	{
+		return Math.max( DEFAULT_CACHED_FRAMES, numThreads * ( 1 + LOOKAHEAD ) );
+	}
+
+	/**
+	 * Returns the pixels of the plane at the specified stack index, waiting
+	 * for them if they are being loaded, or loading them in the calling
+	 * thread if they were not requested before.
+	 * 
+	 * @param n
+	 *            the stack index (1-based).
+	 * @return the pixel array.
+	 */
+	public Object getPixels( final int n )
+	{
+		CompletableFuture< Object > future;
+		boolean load = false;
+		synchronized ( planes )
+		{
+			future = planes.get( n );
+			if ( future == null )
+			{
+				future = new CompletableFuture<>();
+				planes.put( n, future );
+				load = true;
+			}
+		}
+		if ( load )
+			load( n, future );
+		return future.join();
+	}
+
+	/**
+	 * Requests the planes of all channels and Z-slices of the frames
+	 * following the specified one to be loaded in the background.
+	 * 
+	 * @param frame
+	 *            the frame a thread moves to (0-based).
+	 */
+	public void prefetchAfter( final int frame )
+	{
+		prefetchAfter( frame, 0, imp.getNSlices() - 1 );
+	}
+
+	/**
+	 * Requests the planes of all channels and of a range of Z-slices of the
+	 * frames following the specified one to be loaded in the background.
+	 * 
+	 * @param frame
+	 *            the frame a thread moves to (0-based).
+	 * @param zmin
+	 *            the first Z-slice to load (0-based).
+	 * @param zmax
+	 *            the last Z-slice to load (0-based).
+	 */
+	public void prefetchAfter( final int frame, final int zmin, final int zmax )
+	{
+		final int last = Math.min( imp.getNFrames() - 1, frame + LOOKAHEAD );
+		final int z0 = Math.max( 0, zmin );
+		final int z1 = Math.min( imp.getNSlices() - 1, zmax );
+		for ( int t = frame + 1; t <= last; t++ )
+			for ( int c = 0; c < imp.getNChannels(); c++ )
+				for ( int z = z0; z <= z1; z++ )
+					prefetch( imp.getStackIndex( c + 1, z + 1, t + 1 ) );
+	}
+
+	private void prefetch( final int n )
+	{
+		final CompletableFuture< Object > future;
+		synchronized ( planes )
+		{
+			if ( planes.containsKey( n ) )
+				return;
+			future = new CompletableFuture<>();
+			planes.put( n, future );
+		}
+		LOADERS.execute( () -> load( n, future ) );
+	}
+
+	private void load( final int n, final CompletableFuture< Object > future )
+	{
+		try
+		{
+			final Object pixels;
+			synchronized ( stack )
+			{
+				pixels = stack.getPixels( n );
+			}
+			future.complete( pixels );
+		}
+		catch ( final RuntimeException e )
+		{
+			// Do not keep the failure: the plane will be read again.
+			synchronized ( planes )
+			{
+				planes.remove( n, future );
+			}
+			future.completeExceptionally( e );
+		}
+	}
+}
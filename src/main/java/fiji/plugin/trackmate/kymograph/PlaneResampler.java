@@ -0,0 +1,191 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+import net.imglib2.Interval;
+
+/**
+ * Resamples a rotated rectangle of a source slice into an output plane, by
+ * inverse mapping. The mapping from output pixels to source positions is
+ * computed once per plane: each output row starts at its own source position,
+ * and moving one pixel along the row adds a constant step to it. Values are
+ * interpolated straight from the source pixel arrays, linearly or with the
+ * tabulated weights of a higher-order {@link KymographInterpolation} kernel.
+ * In 3D, higher-order kernels are applied in the XY planes, and the values of
+ * the two nearest planes are interpolated linearly. Only the output pixels
+ * whose kernel overlaps the XY bounds of the source region are interpolated;
+ * the others are set to 0 without reading the source.
+ */
+final class PlaneResampler
+{
+
+	private PlaneResampler()
+	{}
+
+	/**
+	 * Resamples a 2D or 3D source slice into an output plane. The output
+	 * pixel <code>(x, y)</code> is taken at the source position
+	 * <code>origin + (x + u0) * eu + (y + v0) * ev</code>.
+	 * 
+	 * @param sampler
+	 *            the source slice. Positions outside of it read as 0.
+	 * @param region
+	 *            the region of the source slice the output is read from. Its
+	 *            X and Y bounds are used; the pixels of the slice outside of
+	 *            them must not contribute to the output.
+	 * @param origin
+	 *            the origin in the source, in pixel coordinates (X, Y, Z).
+	 * @param eu
+	 *            the step in the source between two output columns, in pixel
+	 *            coordinates (X, Y, Z).
+	 * @param ev
+	 *            the step in the source between two output rows, in pixel
+	 *            coordinates (X, Y, Z).
+	 * @param u0
+	 *            the coordinate along <code>eu</code> of the first output
+	 *            column.
+	 * @param v0
+	 *            the coordinate along <code>ev</code> of the first output
+	 *            row.
+	 * @param plane
+	 *            the output plane.
+	 * @param height
+	 *            the number of rows of the output plane.
+	 * @param interpolation
+	 *            the interpolation kernel.
+	 */
+	static void resample( final SliceSampler sampler, final Interval region, final double[] origin, final double[] eu, final double[] ev, final double u0, final double v0, final PlaneWriter plane, final int height, final KymographInterpolation interpolation )
+	{
+		final int width = plane.getWidth();
+		final int radius = interpolation.radius();
+		for ( int y = 0; y < height; y++ )
+		{
+			final double v = v0 + y;
+			final double sx0 = origin[ 0 ] + u0 * eu[ 0 ] + v * ev[ 0 ];
+			final double sy0 = origin[ 1 ] + u0 * eu[ 1 ] + v * ev[ 1 ];
+			final double sz0 = origin[ 2 ] + u0 * eu[ 2 ] + v * ev[ 2 ];
+
+			/*
+			 * A kernel at p reads the pixels floor(p) - radius + 1 to
+			 * floor(p) + radius, so it overlaps [min, max] when p is in
+			 * [min - radius, max + radius). Clip the row to the columns where
+			 * it does in X and Y, with one column of slack for rounding.
+			 */
+
+			double tmin = 0.;
+			double tmax = width - 1;
+			for ( int d = 0; d < 2; d++ )
+			{
+				final double s0 = d == 0 ? sx0 : sy0;
+				final double lo = region.min( d ) - radius;
+				final double hi = region.max( d ) + radius;
+				if ( eu[ d ] == 0. )
+				{
+					if ( s0 < lo || s0 >= hi )
+						tmax = -1.;
+					continue;
+				}
+				final double ta = ( lo - s0 ) / eu[ d ];
+				final double tb = ( hi - s0 ) / eu[ d ];
+				tmin = Math.max( tmin, Math.min( ta, tb ) );
+				tmax = Math.min( tmax, Math.max( ta, tb ) );
+			}
+			final int xa = tmax < tmin ? width : Math.min( width, Math.max( 0, ( int ) Math.ceil( tmin ) - 1 ) );
+			final int xb = tmax < tmin ? width : Math.max( xa, Math.min( width, ( int ) Math.floor( tmax ) + 2 ) );
+
+			for ( int x = 0; x < xa; x++ )
+				plane.set( x, y, 0. );
+			double sx = sx0 + xa * eu[ 0 ];
+			double sy = sy0 + xa * eu[ 1 ];
+			double sz = sz0 + xa * eu[ 2 ];
+			for ( int x = xa; x < xb; x++ )
+			{
+				plane.set( x, y, sample( sampler, sx, sy, sz, interpolation ) );
+				sx += eu[ 0 ];
+				sy += eu[ 1 ];
+				sz += eu[ 2 ];
+			}
+			for ( int x = xb; x < width; x++ )
+				plane.set( x, y, 0. );
+		}
+	}
+
+	private static double sample( final SliceSampler sampler, final double x, final double y, final double z, final KymographInterpolation interpolation )
+	{
+		if ( interpolation == KymographInterpolation.LINEAR )
+			return sampler.interpolate( x, y, z );
+
+		if ( sampler.getDepth() == 1 )
+			return convolve( sampler, x, y, 0, interpolation );
+
+		final double zf = Math.floor( z );
+		final int z0 = ( int ) zf;
+		final double wz = z - zf;
+		final double v0 = convolve( sampler, x, y, z0, interpolation );
+		if ( wz == 0. )
+			return v0;
+		final double v1 = convolve( sampler, x, y, z0 + 1, interpolation );
+		return v0 + wz * ( v1 - v0 );
+	}
+
+	/**
+	 * Interpolates the specified Z-plane of the source slice at the specified
+	 * position with the tabulated weights of the specified kernel, at the
+	 * sub-pixel phases nearest to the position. Pixels outside of the slice
+	 * count as 0.
+	 */
+	private static double convolve( final SliceSampler sampler, final double x, final double y, final int z, final KymographInterpolation interpolation )
+	{
+		final int radius = interpolation.radius();
+		final int taps = 2 * radius;
+		final double[] weights = interpolation.weights();
+
+		final double xf = Math.floor( x );
+		final double yf = Math.floor( y );
+		final int xs = ( int ) xf - radius + 1;
+		final int ys = ( int ) yf - radius + 1;
+		final int wx = KymographInterpolation.phase( x - xf ) * taps;
+		final int wy = KymographInterpolation.phase( y - yf ) * taps;
+
+		final int width = sampler.getWidth();
+		final boolean inside = xs >= 0 && ys >= 0 && xs + taps <= width && ys + taps <= sampler.getHeight()
+				&& z >= sampler.getZMin() && z <= sampler.getZMax();
+		double sum = 0.;
+		for ( int j = 0; j < taps; j++ )
+		{
+			double row = 0.;
+			if ( inside )
+			{
+				final int offset = ( ys + j ) * width + xs;
+				for ( int i = 0; i < taps; i++ )
+					row += weights[ wx + i ] * sampler.getAt( z, offset + i );
+			}
+			else
+			{
+				for ( int i = 0; i < taps; i++ )
+					row += weights[ wx + i ] * sampler.get( xs + i, ys + j, z );
+			}
+			sum += weights[ wy + j ] * row;
+		}
+		return sum;
+	}
+}
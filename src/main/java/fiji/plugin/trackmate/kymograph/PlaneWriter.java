@@ -0,0 +1,208 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+import ij.process.ImageProcessor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+
+/**
+ * Writes values into one ImageJ plane, converting them to the pixel type of
+ * the plane.
+ * <p>
+ * The writers created for 8-bit, 16-bit and 32-bit planes write directly in
+ * their <code>byte[]</code>, <code>short[]</code> or <code>float[]</code>
+ * pixel arrays. Values written to integer planes are rounded and clamped to
+ * the range of the type. Distinct pixels can be written concurrently.
+ * <p>
+ * The writers created for ImgLib2 planes go through a {@link RandomAccess},
+ * and must only be used by one thread.
+ */
+public abstract class PlaneWriter
+{
+
+	protected final int width;
+
+	protected PlaneWriter( final int width )
+	{
+		this.width = width;
+	}
+
+	/**
+	 * Writes the specified value at the specified position, which must be
+	 * inside the plane.
+	 * 
+	 * @param x
+	 *            the X position.
+	 * @param y
+	 *            the Y position.
+	 * @param value
+	 *            the value to write.
+	 */
+	public abstract void set( int x, int y, double value );
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * Creates a writer for the specified plane.
+	 * 
+	 * @param plane
+	 *            the plane to write into.
+	 * @return a new writer.
+	 */
+	public static PlaneWriter create( final ImageProcessor plane )
+	{
+		final Object pixels = plane.getPixels();
+		if ( pixels instanceof byte[] )
+			return new ByteWriter( plane.getWidth(), ( byte[] ) pixels );
+		if ( pixels instanceof short[] )
+			return new ShortWriter( plane.getWidth(), ( short[] ) pixels );
+		if ( pixels instanceof float[] )
+			return new FloatWriter( plane.getWidth(), ( float[] ) pixels );
+		return new ProcessorWriter( plane );
+	}
+
+	/**
+	 * Creates a writer for the specified 2D ImgLib2 plane. The writer must
+	 * only be used by one thread.
+	 * 
+	 * @param plane
+	 *            the plane to write into.
+	 * @return a new writer.
+	 */
+	public static < T extends RealType< T > > PlaneWriter create( final RandomAccessibleInterval< T > plane )
+	{
+		return new RandomAccessWriter<>( plane );
+	}
+
+	private static final class ByteWriter extends PlaneWriter
+	{
+
+		private final byte[] pixels;
+
+		private ByteWriter( final int width, final byte[] pixels )
+		{
+			super( width );
+			this.pixels = pixels;
+		}
+
+		@Override
+		public void set( final int x, final int y, final double value )
+		{
+			pixels[ y * width + x ] = ( byte ) Math.round( Math.max( 0., Math.min( 255., value ) ) );
+		}
+	}
+
+	private static final class ShortWriter extends PlaneWriter
+	{
+
+		private final short[] pixels;
+
+		private ShortWriter( final int width, final short[] pixels )
+		{
+			super( width );
+			this.pixels = pixels;
+		}
+
+		@Override
+		public void set( final int x, final int y, final double value )
+		{
+			pixels[ y * width + x ] = ( short ) Math.round( Math.max( 0., Math.min( 65535., value ) ) );
+		}
+	}
+
+	private static final class FloatWriter extends PlaneWriter
+	{
+
+		private final float[] pixels;
+
+		private FloatWriter( final int width, final float[] pixels )
+		{
+			super( width );
+			this.pixels = pixels;
+		}
+
+		@Override
+		public void set( final int x, final int y, final double value )
+		{
+			pixels[ y * width + x ] = ( float ) value;
+		}
+	}
+
+	private static final class ProcessorWriter extends PlaneWriter
+	{
+
+		private final ImageProcessor plane;
+
+		private ProcessorWriter( final ImageProcessor plane )
+		{
+			super( plane.getWidth() );
+			this.plane = plane;
+		}
+
+		@Override
+		public void set( final int x, final int y, final double value )
+		{
+			plane.putPixelValue( x, y, value );
+		}
+	}
+
+	private static final class RandomAccessWriter< T extends RealType< T > > extends PlaneWriter
+	{
+
+		private final RandomAccess< T > ra;
+
+		private final boolean integer;
+
+		private final double min;
+
+		private final double max;
+
+		private RandomAccessWriter( final RandomAccessibleInterval< T > plane )
+		{
+			super( ( int ) plane.dimension( 0 ) );
+			this.ra = plane.randomAccess();
+			ra.setPosition( Intervals.minAsLongArray( plane ) );
+			final T type = ra.get();
+			this.integer = type instanceof IntegerType;
+			this.min = type.getMinValue();
+			this.max = type.getMaxValue();
+		}
+
+		@Override
+		public void set( final int x, final int y, final double value )
+		{
+			ra.setPosition( x, 0 );
+			ra.setPosition( y, 1 );
+			if ( integer )
+				ra.get().setReal( Math.round( Math.max( min, Math.min( max, value ) ) ) );
+			else
+				ra.get().setReal( value );
+		}
+	}
+}
@@ -21,28 +21,27 @@
  */
 package fiji.plugin.trackmate.kymograph;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import org.scijava.Cancelable;
+
+import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
-import fiji.plugin.trackmate.kymograph.ui.KymographUtils;
 import fiji.plugin.trackmate.util.TMUtils;
 import ij.CompositeImage;
-import ij.IJ;
 import ij.ImagePlus;
 import ij.process.LUT;
-import net.imagej.ImgPlus;
-import net.imagej.axis.Axes;
-import net.imglib2.Cursor;
-import net.imglib2.RandomAccess;
-import net.imglib2.RandomAccessible;
-import net.imglib2.RealRandomAccessible;
+import net.imglib2.Interval;
+import net.imglib2.algorithm.Benchmark;
+import net.imglib2.algorithm.MultiThreaded;
 import net.imglib2.algorithm.OutputAlgorithm;
-import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
-import net.imglib2.realtransform.AffineTransform2D;
-import net.imglib2.realtransform.RealViews;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.view.Views;
 
-public class RegisteredImageCreator implements OutputAlgorithm< ImagePlus >
+public class RegisteredImageCreator implements OutputAlgorithm< ImagePlus >, MultiThreaded, Benchmark, Cancelable
 {
 
 	private static final String BASE_ERROR_MESSAGE = "[RegisteredImageCreator] ";
@@ -51,22 +50,48 @@ public class RegisteredImageCreator implements OutputAlgorithm< ImagePlus >
 
 	private final ImagePlus imp;
 
+	private final TrackFrameIndex index;
+
 	private KymographCreationParams params;
 
+	private TrackPairGeometry geometry;
+
 	private ImagePlus output;
 
+	private OutputImage target;
+
 	private String errorMessage;
 
-	public RegisteredImageCreator( final Model model, final ImagePlus imp, final KymographCreationParams params )
+	private long processingTime;
+
+	private Logger logger = Logger.VOID_LOGGER;
+
+	private volatile String cancelReason;
+
+	private int numThreads;
+
+	public RegisteredImageCreator( final TrackFrameIndex index, final ImagePlus imp, final KymographCreationParams params )
 	{
-		this.model = model;
+		this.model = index.getModel();
+		this.index = index;
 		this.imp = imp;
 		this.params = params;
+		setNumThreads();
 	}
 
 	@Override
 	public boolean checkInput()
 	{
+		if ( params.isPath() )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Registered images can only be created between two tracks, got " + params.trackIDs + ".";
+			return false;
+		}
+		if ( imp.getType() == ImagePlus.COLOR_RGB )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "RGB images are not supported. Split the channels or convert the image first.";
+			return false;
+		}
 		final boolean containsTrackID1 = model.getTrackModel().trackIDs( true ).contains( params.trackID1 );
 		if ( !containsTrackID1 )
 		{
@@ -79,9 +104,9 @@ public class RegisteredImageCreator implements OutputAlgorithm< ImagePlus >
 			errorMessage = BASE_ERROR_MESSAGE + "Model does not contain a track with ID " + params.trackID2;
 			return false;
 		}
-		if ( imp.getNSlices() > 1 )
+		if ( imp.getNSlices() > 1 && params.slabDepth < 1 )
 		{
-			errorMessage = BASE_ERROR_MESSAGE + "Can only register a 2D image, got a 3D image.";
+			errorMessage = BASE_ERROR_MESSAGE + "The depth of the slab must be at least 1, got " + params.slabDepth + ".";
 			return false;
 		}
 		return true;
@@ -92,15 +117,55 @@ public class RegisteredImageCreator implements OutputAlgorithm< ImagePlus >
 		this.params = params;
 	}
 
+	public KymographCreationParams getParams()
+	{
+		return params;
+	}
+
+	/**
+	 * Sets the geometry of the line between the two tracks, if it was already
+	 * computed, so that it is not computed again. It is ignored if it is not
+	 * the one of the tracks of the parameters. As the geometry does not
+	 * follow the edits of the model, it must be set again or reset to
+	 * <code>null</code> after the model changes.
+	 * 
+	 * @param geometry
+	 *            the geometry, or <code>null</code> to compute it.
+	 */
+	public void setGeometry( final TrackPairGeometry geometry )
+	{
+		this.geometry = geometry;
+	}
+
+	/**
+	 * Sets the logger that receives the progress of the resampling.
+	 * 
+	 * @param logger
+	 *            the logger.
+	 */
+	public void setLogger( final Logger logger )
+	{
+		this.logger = logger;
+	}
+
 	@Override
 	public boolean process()
 	{
+		final long start = System.currentTimeMillis();
+		if ( geometry == null || !geometry.isFor( params.trackID1, params.trackID2 ) )
+			geometry = TrackPairGeometry.create( index, imp, params.trackID1, params.trackID2 );
+
 		// Timepoints to process.
-		final int[] minmax = KymographUtils.getMinMaxTimePoints( model, params.trackID1, params.trackID1 );
-		final int nFrames = minmax[ 1 ] - minmax[ 0 ] + 1;
+		final int nFrames = geometry.getLastFrame() - geometry.getFirstFrame() + 1;
 
 		// Determine max width.
-		final double maxWidth = getMaxWidth( params.trackID1, params.trackID1 );
+		final double maxWidth = getMaxWidth();
+		if ( nFrames <= 0 || maxWidth == Double.NEGATIVE_INFINITY )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "The tracks " + params.trackID1 + " and " + params.trackID2 + " do not have spots in common time-points.";
+			processingTime = System.currentTimeMillis() - start;
+			return false;
+		}
 		// Pad with the thickness on both sides.
 		final int width = ( int ) ( maxWidth + 2 * params.thickness );
 
@@ -113,10 +178,14 @@ public class RegisteredImageCreator implements OutputAlgorithm< ImagePlus >
 				params.trackID1.toString(),
 				params.trackID2.toString() );
 		final int nChannels = imp.getNChannels();
-		final int nZSlices = 1;
-		output = IJ.createHyperStack( outputName, width, height, nChannels, nZSlices, nFrames, imp.getBitDepth() );
+		// 3D stacks give a slab, sampled with the pixel width along all axes.
+		final int nZSlices = imp.getNSlices() > 1 ? params.slabDepth : 1;
+		target = OutputImage.create( outputName, width, height, nChannels, nZSlices, nFrames, imp.getBitDepth(), params );
+		output = target.getImagePlus();
 		output.getCalibration().pixelWidth = imp.getCalibration().pixelWidth;
 		output.getCalibration().pixelHeight = imp.getCalibration().pixelHeight;
+		if ( nZSlices > 1 )
+			output.getCalibration().pixelDepth = imp.getCalibration().pixelWidth;
 		output.getCalibration().setUnit( imp.getCalibration().getUnit() );
 		output.getCalibration().frameInterval = imp.getCalibration().frameInterval;
 		output.getCalibration().setTimeUnit( imp.getCalibration().getTimeUnit() );
@@ -129,85 +198,206 @@ public class RegisteredImageCreator implements OutputAlgorithm< ImagePlus >
 		}
 
 		// Write into output image.
-		writeInto( output );
+		final boolean ok = writeInto( target );
+		processingTime = System.currentTimeMillis() - start;
+		if ( !ok )
+			return false;
+		if ( isCanceled() )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Canceled: " + cancelReason;
+			return false;
+		}
 		return true;
 	}
 
-	private < T extends RealType< T > & NativeType< T > > void writeInto( final ImagePlus target )
+	/**
+	 * Resamples the source into the output, one (frame, channel) plane per
+	 * task. Tasks are processed in parallel, and each worker thread reads the
+	 * source through its own accessors. For 3D stacks, each task reads only
+	 * the Z-planes that intersect its slab.
+	 */
+	private < T extends RealType< T > & NativeType< T > > boolean writeInto( final OutputImage target )
 	{
-		@SuppressWarnings( "unchecked" )
-		final ImgPlus< T > outimg = TMUtils.rawWraps( target );
-		final int nChannels = ( int ) outimg.dimension( outimg.dimensionIndex( Axes.CHANNEL ) );
-		final long height = outimg.dimension( outimg.dimensionIndex( Axes.Y ) );
+		final int nChannels = output.getNChannels();
 
 		// Timepoints to process.
-		final int[] minmax = KymographUtils.getMinMaxTimePoints( model, params.trackID1, params.trackID1 );
-		final int nFrames = minmax[ 1 ] - minmax[ 0 ] + 1;
+		final int firstFrame = geometry.getFirstFrame();
+		final int nFrames = geometry.getLastFrame() - firstFrame + 1;
 
-		for ( int i = 0; i < nFrames; i++ )
-		{
-			final int tp = i + minmax[ 0 ];
-			final long[] coords1 = KymographUtils.getCoords( model, imp, tp, params.trackID1 );
-			final long[] coords2 = KymographUtils.getCoords( model, imp, tp, params.trackID2 );
-			if ( coords1 == null || coords2 == null )
-				continue;
+		// Views on the source, built once for the whole run.
+		final SliceViews< T > views = new SliceViews<>( imp, numThreads );
+		final ThreadLocal< SliceViews< T >.Accessors > accessors = ThreadLocal.withInitial( views::accessors );
 
-			final double l = getDistance( coords1, coords2 );
-
-			for ( int c = 0; c < nChannels; c++ )
-			{
-				final ImgPlus< T > slice = TMUtils.hyperSlice( outimg, c, i );
-				final RandomAccessible< T > crop = crop( coords1, coords2, c, tp );
-
-				final int xoffset = params.alignment.offset( ( int ) l, ( int ) outimg.dimension( 0 ) );
-				final Cursor< T > cursor = slice.localizingCursor();
-				final RandomAccess< T > ra = crop.randomAccess();
-				while ( cursor.hasNext() )
-				{
-					cursor.fwd();
-					ra.setPosition( cursor );
-					ra.move( -xoffset, 0 );
-					ra.move( -height / 2, 1 );
-					cursor.get().set( ra.get() );
-				}
-			}
+		final int nTasks = nFrames * nChannels;
+		final AtomicInteger done = new AtomicInteger( 0 );
+		final ForkJoinPool pool = new ForkJoinPool( numThreads );
+		try
+		{
+			pool.submit( () -> IntStream.range( 0, nTasks ).parallel().forEach( task -> {
+				if ( isCanceled() )
+					return;
+				writeInto( target, views, accessors.get(), task / nChannels, task % nChannels, firstFrame );
+				// Only report whole percent changes.
+				final int d = done.incrementAndGet();
+				if ( d * 100L / nTasks != ( d - 1 ) * 100L / nTasks )
+					logger.setProgress( ( double ) d / nTasks );
+			} ) ).get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Problem resampling the image: " + e.getMessage();
+			return false;
+		}
+		finally
+		{
+			pool.shutdown();
+			logger.setProgress( 0. );
 		}
+		return true;
 	}
 
-	private < T extends RealType< T > & NativeType< T > > RandomAccessible< T > crop( final long[] from, final long[] to, final int channel, final int timepoint )
+	/**
+	 * Resamples one channel of one frame of the source into the output. The
+	 * output is a rectangle in 2D, and a slab of planes in 3D.
+	 * 
+	 * @param i
+	 *            the frame in the output (0 based).
+	 * @param c
+	 *            the channel (0 based).
+	 * @param firstFrame
+	 *            the frame of the source that the first frame of the output
+	 *            comes from.
+	 */
+	private < T extends RealType< T > & NativeType< T > > void writeInto( final OutputImage target, final SliceViews< T > views, final SliceViews< T >.Accessors accessors, final int i, final int c, final int firstFrame )
 	{
-		@SuppressWarnings( "unchecked" )
-		final ImgPlus< T > img = TMUtils.rawWraps( imp );
-		final ImgPlus< T > current = TMUtils.hyperSlice( img, channel, timepoint );
+		final int width = output.getWidth();
+		final int height = output.getHeight();
+		final int depth = output.getNSlices();
 
-		// Compute transform.
-		final AffineTransform2D transform = new AffineTransform2D();
-		transform.translate( -from[ 0 ], -from[ 1 ] );
-		final double dy = to[ 1 ] - from[ 1 ];
+		final int tp = i + firstFrame;
+		if ( !geometry.contains( tp ) )
+			return;
+
+		final long[] coords1 = geometry.getCoords1( tp );
+		final long[] coords2 = geometry.getCoords2( tp );
+		final double l = lineLength( tp, coords1, coords2 );
+		final int xoffset = params.alignment.offset( ( int ) l, width );
+
+		// Output axes in the source, and coordinates of the first output pixel.
+		final double[][] axes = axes( tp, coords1, coords2 );
+		final double u0 = -xoffset;
+		final double v0 = -height / 2;
+		final double w0 = -depth / 2;
+
+		// Skip frames whose output lies outside of the source, and read the
+		// others within the region their output covers.
+		final Interval region = sourceRegion( coords1, axes, u0, v0, w0, width, height, depth );
+		if ( region == null )
+			return;
+
+		final SliceSampler sampler = imp.getNSlices() > 1
+				? views.sampler( c, tp, ( int ) region.min( 2 ), ( int ) region.max( 2 ) )
+				: accessors.sampler( c, tp );
+		final double[] origin = new double[ 3 ];
+		for ( int z = 0; z < depth; z++ )
+		{
+			for ( int d = 0; d < 3; d++ )
+				origin[ d ] = ( d < coords1.length ? coords1[ d ] : 0. ) + ( w0 + z ) * axes[ 2 ][ d ];
+			final PlaneWriter plane = target.writer( c, z, i );
+			PlaneResampler.resample( sampler, region, origin, axes[ 0 ], axes[ 1 ], u0, v0, plane, height, params.interpolation );
+		}
+	}
+
+	/**
+	 * Returns the axes of the output in the source, in pixel coordinates (X,
+	 * Y, Z): the steps along the line, along its normal in the XY plane, and
+	 * along the third axis of the slab. Each step is one pixel width long,
+	 * except along the line with {@link KymographSlabAxis#Z}, where it is one
+	 * pixel width long in the XY plane.
+	 */
+	private double[][] axes( final int tp, final long[] from, final long[] to )
+	{
+		final double zScale = zScale();
 		final double dx = to[ 0 ] - from[ 0 ];
-		final double alpha = Math.atan2( dy, dx );
-		transform.rotate( -alpha );
+		final double dy = to[ 1 ] - from[ 1 ];
+		final double dz = from.length > 2 ? ( to[ 2 ] - from[ 2 ] ) * zScale : 0.;
+		final double lxy = geometry.getPixelLength( tp );
+		final double[] normal = geometry.getNormal( tp );
+		final double[] ev = new double[] { normal[ 0 ], normal[ 1 ], 0. };
+
+		if ( from.length < 3 || params.slabAxis == KymographSlabAxis.Z )
+		{
+			// Follow the line in Z, one pixel width in XY per column.
+			final double[] eu = lxy == 0.
+					? new double[] { 1., 0., 0. }
+					: new double[] { dx / lxy, dy / lxy, dz / lxy / zScale };
+			final double[] ew = new double[] { 0., 0., 1. / zScale };
+			return new double[][] { eu, ev, ew };
+		}
+
+		final double l = Math.sqrt( lxy * lxy + dz * dz );
+		final double[] eu = l == 0.
+				? new double[] { 1., 0., 0. }
+				: new double[] { dx / l, dy / l, dz / l / zScale };
+		final double[] cs = SamplingStencil.crossSectionAxes( dx, dy, dz );
+		final double[] ew = new double[] { cs[ 3 ], cs[ 4 ], cs[ 5 ] / zScale };
+		return new double[][] { eu, ev, ew };
+	}
+
+	/**
+	 * Returns the length of the line between the two points along the X axis
+	 * of the output, in pixel widths.
+	 */
+	private double lineLength( final int tp, final long[] from, final long[] to )
+	{
+		final double lxy = geometry.getPixelLength( tp );
+		if ( from.length < 3 || params.slabAxis == KymographSlabAxis.Z )
+			return lxy;
+
+		final double dz = ( to[ 2 ] - from[ 2 ] ) * zScale();
+		return Math.sqrt( lxy * lxy + dz * dz );
+	}
+
+	/**
+	 * Returns the ratio of the voxel depth to the pixel width of the source.
+	 */
+	private double zScale()
+	{
+		final double[] calibration = TMUtils.getSpatialCalibration( imp );
+		return calibration[ 2 ] / calibration[ 0 ];
+	}
 
-		// Transform.
-		final RealRandomAccessible< T > source = Views.interpolate( Views.extendZero( current ),
-				new NLinearInterpolatorFactory<>() );
-		return RealViews.affine( source, transform );
+	/**
+	 * Returns the region of the source covered by the output box of a frame,
+	 * plus a margin for the interpolation kernel in XY, and of 1 plane in Z
+	 * for the linear interpolation between planes.
+	 */
+	private Interval sourceRegion( final long[] from, final double[][] axes, final double u0, final double v0, final double w0, final int width, final int height, final int depth )
+	{
+		final double[] xs = new double[ 8 ];
+		final double[] ys = new double[ 8 ];
+		final double[] zs = new double[ 8 ];
+		for ( int k = 0; k < 8; k++ )
+		{
+			final double u = u0 + ( ( k & 1 ) == 0 ? 0 : width - 1 );
+			final double v = v0 + ( ( k & 2 ) == 0 ? 0 : height - 1 );
+			final double w = w0 + ( ( k & 4 ) == 0 ? 0 : depth - 1 );
+			xs[ k ] = from[ 0 ] + u * axes[ 0 ][ 0 ] + v * axes[ 1 ][ 0 ] + w * axes[ 2 ][ 0 ];
+			ys[ k ] = from[ 1 ] + u * axes[ 0 ][ 1 ] + v * axes[ 1 ][ 1 ] + w * axes[ 2 ][ 1 ];
+			zs[ k ] = ( from.length > 2 ? from[ 2 ] : 0. ) + u * axes[ 0 ][ 2 ] + v * axes[ 1 ][ 2 ] + w * axes[ 2 ][ 2 ];
+		}
+		return BandRegion.of( xs, ys, zs, params.interpolation.radius(), 1, imp );
 	}
 
-	private double getMaxWidth( final Integer trackID1, final Integer trackID2 )
+	private double getMaxWidth()
 	{
-		final int[] mm = KymographUtils.getMinMaxTimePoints( model, trackID1, trackID2 );
-		final int min = mm[ 0 ];
-		final int max = mm[ 1 ];
 		double maxLength = Double.NEGATIVE_INFINITY;
-		for ( int tp = min; tp <= max; tp++ )
+		for ( int tp = geometry.getFirstFrame(); tp <= geometry.getLastFrame(); tp++ )
 		{
-			final long[] coords1 = KymographUtils.getCoords( model, imp, tp, params.trackID1 );
-			final long[] coords2 = KymographUtils.getCoords( model, imp, tp, params.trackID2 );
-			if ( coords1 == null || coords2 == null )
+			if ( !geometry.contains( tp ) )
 				continue;
 
-			final double l = getDistance( coords1, coords2 );
+			final double l = lineLength( tp, geometry.getCoords1( tp ), geometry.getCoords2( tp ) );
 			if ( l > maxLength )
 				maxLength = l;
 		}
@@ -228,6 +418,50 @@ public class RegisteredImageCreator implements OutputAlgorithm< ImagePlus >
 		return errorMessage;
 	}
 
+	@Override
+	public void setNumThreads()
+	{
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	@Override
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+
+	// --- org.scijava.Cancelable methods ---
+
+	@Override
+	public boolean isCanceled()
+	{
+		return cancelReason != null;
+	}
+
+	@Override
+	public void cancel( final String reason )
+	{
+		cancelReason = reason;
+	}
+
+	@Override
+	public String getCancelReason()
+	{
+		return cancelReason;
+	}
+
 	@Override
 	public ImagePlus getResult()
 	{
@@ -0,0 +1,541 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.scijava.util.DoubleArray;
+import org.scijava.util.IntArray;
+
+import fiji.plugin.trackmate.kymograph.KymographProjectionMethod.Accumulator;
+
+/**
+ * The pixels to sample for a thick line of a given geometry, as offsets from
+ * the first point of the line.
+ * <p>
+ * The center line is the Bresenham line between the two points. Each of its
+ * pixels defines one column of the stencil, that is one position in the
+ * projected line. For thick lines, a column is made of the pixels that are
+ * aligned with the center pixel along the axis closest to the normal of the
+ * line (in the XY plane), and whose distance to the line is at most half the
+ * thickness. Each pixel of the band therefore belongs to exactly one column,
+ * and the band has no hole.
+ * <p>
+ * In 3D, the band can also be a cylinder or have a rectangular
+ * cross-section around the line (see {@link KymographBandShape}). Each voxel
+ * of the band then goes to the column of its orthogonal projection on the
+ * line. The voxels are ordered by Z-slice, so that the stencil reads the
+ * source one plane at a time.
+ * <p>
+ * The offsets depend only on the vector between the two points, the band
+ * geometry and the image width, so the same stencil can be applied to all
+ * channels and to all the frames in which this vector is the same.
+ */
+public class SamplingStencil
+{
+
+	private final int length;
+
+	private final int[] columns;
+
+	private final int[] xs;
+
+	private final int[] ys;
+
+	private final int[] zs;
+
+	private final int[] flat;
+
+	private final int[] min;
+
+	private final int[] max;
+
+	private SamplingStencil( final int length, final int[] columns, final int[] xs, final int[] ys, final int[] zs, final int width )
+	{
+		this.length = length;
+		this.columns = columns;
+		this.xs = xs;
+		this.ys = ys;
+		this.zs = zs;
+		this.flat = new int[ columns.length ];
+		this.min = new int[ 3 ];
+		this.max = new int[ 3 ];
+		for ( int k = 0; k < columns.length; k++ )
+		{
+			flat[ k ] = xs[ k ] + ys[ k ] * width;
+			min[ 0 ] = Math.min( min[ 0 ], xs[ k ] );
+			min[ 1 ] = Math.min( min[ 1 ], ys[ k ] );
+			min[ 2 ] = Math.min( min[ 2 ], zs[ k ] );
+			max[ 0 ] = Math.max( max[ 0 ], xs[ k ] );
+			max[ 1 ] = Math.max( max[ 1 ], ys[ k ] );
+			max[ 2 ] = Math.max( max[ 2 ], zs[ k ] );
+		}
+	}
+
+	/**
+	 * Returns the length of the projected line, that is the number of
+	 * columns of this stencil.
+	 * 
+	 * @return the length.
+	 */
+	public int length()
+	{
+		return length;
+	}
+
+	/**
+	 * Returns the number of pixels sampled by this stencil.
+	 * 
+	 * @return the number of pixels.
+	 */
+	public int size()
+	{
+		return columns.length;
+	}
+
+	/**
+	 * Samples the pixels of this stencil, positioned at the specified first
+	 * point, in all the specified channels, and accumulates them in their
+	 * column. The channels are read in a single pass: the position of each
+	 * pixel is computed once, and all the channels are read there. The
+	 * accumulators must have been reset to the length of this stencil.
+	 * 
+	 * @param samplers
+	 *            the samplers to read pixels from, one per channel.
+	 * @param from
+	 *            the first point of the line, in pixel coordinates.
+	 * @param accumulators
+	 *            the accumulators, one per channel.
+	 */
+	public void accumulate( final SliceSampler[] samplers, final long[] from, final Accumulator[] accumulators )
+	{
+		final int nChannels = samplers.length;
+		final SliceSampler first = samplers[ 0 ];
+		final long x0 = from[ 0 ];
+		final long y0 = from[ 1 ];
+		final long z0 = from.length > 2 ? from[ 2 ] : 0;
+		if ( x0 + min[ 0 ] >= 0 && x0 + max[ 0 ] < first.getWidth()
+				&& y0 + min[ 1 ] >= 0 && y0 + max[ 1 ] < first.getHeight()
+				&& z0 + min[ 2 ] >= first.getZMin() && z0 + max[ 2 ] <= first.getZMax() )
+		{
+			// Fully inside: plain index arithmetic.
+			final int base = ( int ) ( x0 + y0 * first.getWidth() );
+			final int z = ( int ) z0;
+			for ( int k = 0; k < columns.length; k++ )
+			{
+				final int i = base + flat[ k ];
+				final int zk = z + zs[ k ];
+				for ( int c = 0; c < nChannels; c++ )
+					accumulators[ c ].accumulate( columns[ k ], samplers[ c ].getAt( zk, i ) );
+			}
+		}
+		else
+		{
+			for ( int k = 0; k < columns.length; k++ )
+			{
+				final long x = x0 + xs[ k ];
+				final long y = y0 + ys[ k ];
+				final long z = z0 + zs[ k ];
+				for ( int c = 0; c < nChannels; c++ )
+					accumulators[ c ].accumulate( columns[ k ], samplers[ c ].get( x, y, z ) );
+			}
+		}
+	}
+
+	/**
+	 * Computes the stencil for a line of the specified thickness between two
+	 * points separated by the specified vector.
+	 * 
+	 * @param delta
+	 *            the vector from the first point to the second point, in
+	 *            pixels, with 2 or 3 elements.
+	 * @param thickness
+	 *            the thickness of the line, in pixels.
+	 * @param width
+	 *            the width of the image the stencil will be applied to.
+	 * @return a new stencil.
+	 */
+	public static SamplingStencil create( final long[] delta, final int thickness, final int width )
+	{
+		final int nDims = delta.length;
+
+		// Dominant axis and length.
+		int a = 0;
+		for ( int d = 1; d < nDims; d++ )
+			if ( Math.abs( delta[ d ] ) > Math.abs( delta[ a ] ) )
+				a = d;
+		final int n = ( int ) Math.abs( delta[ a ] );
+
+		// Normal in the XY plane, and the axis closest to it.
+		final double dx = delta[ 0 ];
+		final double dy = delta[ 1 ];
+		final double lxy = Math.sqrt( dx * dx + dy * dy );
+		final double nx = lxy == 0. ? 0. : -dy / lxy;
+		final double ny = lxy == 0. ? 1. : dx / lxy;
+		final int b = Math.abs( nx ) > Math.abs( ny ) ? 0 : 1;
+		final double nb = ( b == 0 ) ? nx : ny;
+
+		// Same as the original line-shifting scheme: 2 * span - 1 lines.
+		final double halfWidth = Math.max( 0, thickness / 2 - 1 ) + 0.5;
+		final boolean thin = thickness / 2 <= 1;
+
+		final IntArray columns = new IntArray();
+		final IntArray xs = new IntArray();
+		final IntArray ys = new IntArray();
+		final IntArray zs = new IntArray();
+
+		// Walk the center line.
+		final long[] position = new long[ 3 ];
+		final long[] error = new long[ 3 ];
+		for ( int i = 0; i <= n; i++ )
+		{
+			if ( thin )
+			{
+				columns.addValue( i );
+				xs.addValue( ( int ) position[ 0 ] );
+				ys.addValue( ( int ) position[ 1 ] );
+				zs.addValue( ( int ) position[ 2 ] );
+			}
+			else
+			{
+				// Signed distance of the center pixel to the line.
+				final double s = position[ 0 ] * nx + position[ 1 ] * ny;
+				final double k1 = ( -halfWidth - s ) / nb;
+				final double k2 = ( halfWidth - s ) / nb;
+				final int kmin = ( int ) Math.ceil( Math.min( k1, k2 ) );
+				final int kmax = ( int ) Math.floor( Math.max( k1, k2 ) );
+				for ( int k = kmin; k <= kmax; k++ )
+				{
+					columns.addValue( i );
+					xs.addValue( ( int ) position[ 0 ] + ( b == 0 ? k : 0 ) );
+					ys.addValue( ( int ) position[ 1 ] + ( b == 1 ? k : 0 ) );
+					zs.addValue( ( int ) position[ 2 ] );
+				}
+			}
+
+			for ( int d = 0; d < nDims; d++ )
+			{
+				error[ d ] += Math.abs( delta[ d ] );
+				if ( 2 * error[ d ] >= n )
+				{
+					position[ d ] += delta[ d ] > 0 ? 1 : -1;
+					error[ d ] -= n;
+				}
+			}
+		}
+
+		return new SamplingStencil( n + 1,
+				columns.copyArray(),
+				xs.copyArray(),
+				ys.copyArray(),
+				zs.copyArray(),
+				width );
+	}
+
+	/**
+	 * Computes the stencil for a band of the specified shape around the line
+	 * between two points separated by the specified vector. In 2D, and for
+	 * {@link KymographBandShape#PLANAR}, this is the same as
+	 * {@link #create(long[], int, int)}.
+	 * 
+	 * @param delta
+	 *            the vector from the first point to the second point, in
+	 *            pixels, with 2 or 3 elements.
+	 * @param shape
+	 *            the shape of the band.
+	 * @param thickness
+	 *            the thickness of the band, in pixels.
+	 * @param depth
+	 *            the depth of the band, in pixels, for
+	 *            {@link KymographBandShape#RECTANGLE}.
+	 * @param zScale
+	 *            the ratio of the voxel depth to the pixel width.
+	 * @param width
+	 *            the width of the image the stencil will be applied to.
+	 * @return a new stencil.
+	 */
+	public static SamplingStencil create( final long[] delta, final KymographBandShape shape, final int thickness, final int depth, final double zScale, final int width )
+	{
+		final boolean rectangle = shape == KymographBandShape.RECTANGLE;
+		final boolean thin = thickness / 2 <= 1 && ( !rectangle || depth / 2 <= 1 );
+		if ( delta.length < 3 || shape == KymographBandShape.PLANAR || thin )
+			return create( delta, thickness, width );
+
+		final double halfWidth = Math.max( 0, thickness / 2 - 1 ) + 0.5;
+		final double halfDepth = rectangle ? Math.max( 0, depth / 2 - 1 ) + 0.5 : halfWidth;
+
+		// Dominant axis and length.
+		int a = 0;
+		for ( int d = 1; d < 3; d++ )
+			if ( Math.abs( delta[ d ] ) > Math.abs( delta[ a ] ) )
+				a = d;
+		final int n = ( int ) Math.abs( delta[ a ] );
+
+		// Line vector and cross-section axes, in units of the pixel width.
+		final double dx = delta[ 0 ];
+		final double dy = delta[ 1 ];
+		final double dz = delta[ 2 ] * zScale;
+		final double d2 = dx * dx + dy * dy + dz * dz;
+		final double[] axes = crossSectionAxes( dx, dy, dz );
+
+		// Neighborhood of each center voxel that can hold voxels of its column.
+		final double reach = Math.max( halfWidth, halfDepth );
+		final int rxy = ( int ) Math.ceil( reach ) + 2;
+		final int rz = ( int ) Math.ceil( reach / zScale ) + 2;
+
+		final IntArray columns = new IntArray();
+		final IntArray xs = new IntArray();
+		final IntArray ys = new IntArray();
+		final IntArray zs = new IntArray();
+
+		// Walk the center line.
+		final long[] position = new long[ 3 ];
+		final long[] error = new long[ 3 ];
+		for ( int i = 0; i <= n; i++ )
+		{
+			for ( int z = ( int ) position[ 2 ] - rz; z <= position[ 2 ] + rz; z++ )
+			{
+				final double pz = z * zScale;
+				for ( int y = ( int ) position[ 1 ] - rxy; y <= position[ 1 ] + rxy; y++ )
+				{
+					for ( int x = ( int ) position[ 0 ] - rxy; x <= position[ 0 ] + rxy; x++ )
+					{
+						// Column of the orthogonal projection on the line.
+						final double u = d2 == 0. ? 0. : ( x * dx + y * dy + pz * dz ) / d2;
+						if ( Math.round( u * n ) != i )
+							continue;
+
+						// Offset from the line.
+						final double vx = x - u * dx;
+						final double vy = y - u * dy;
+						final double vz = pz - u * dz;
+						final boolean inside;
+						if ( rectangle )
+						{
+							final double s1 = vx * axes[ 0 ] + vy * axes[ 1 ] + vz * axes[ 2 ];
+							final double s2 = vx * axes[ 3 ] + vy * axes[ 4 ] + vz * axes[ 5 ];
+							inside = Math.abs( s1 ) <= halfWidth && Math.abs( s2 ) <= halfDepth;
+						}
+						else
+						{
+							inside = vx * vx + vy * vy + vz * vz <= halfWidth * halfWidth;
+						}
+						if ( !inside )
+							continue;
+
+						columns.addValue( i );
+						xs.addValue( x );
+						ys.addValue( y );
+						zs.addValue( z );
+					}
+				}
+			}
+
+			for ( int d = 0; d < 3; d++ )
+			{
+				error[ d ] += Math.abs( delta[ d ] );
+				if ( 2 * error[ d ] >= n )
+				{
+					position[ d ] += delta[ d ] > 0 ? 1 : -1;
+					error[ d ] -= n;
+				}
+			}
+		}
+
+		// Order the voxels plane by plane, then row by row.
+		final int size = columns.size();
+		final Integer[] order = new Integer[ size ];
+		for ( int k = 0; k < size; k++ )
+			order[ k ] = k;
+		Arrays.sort( order, Comparator.< Integer >comparingInt( k -> zs.getValue( k ) )
+				.thenComparingInt( k -> ys.getValue( k ) )
+				.thenComparingInt( k -> xs.getValue( k ) ) );
+		final int[] sortedColumns = new int[ size ];
+		final int[] sortedXs = new int[ size ];
+		final int[] sortedYs = new int[ size ];
+		final int[] sortedZs = new int[ size ];
+		for ( int k = 0; k < size; k++ )
+		{
+			final int o = order[ k ];
+			sortedColumns[ k ] = columns.getValue( o );
+			sortedXs[ k ] = xs.getValue( o );
+			sortedYs[ k ] = ys.getValue( o );
+			sortedZs[ k ] = zs.getValue( o );
+		}
+		return new SamplingStencil( n + 1, sortedColumns, sortedXs, sortedYs, sortedZs, width );
+	}
+
+	/**
+	 * Returns the offsets of the sampling points of the cross-section of a
+	 * band, for the interpolated sampling method. For
+	 * {@link KymographBandShape#PLANAR} and in 2D, the points are spaced by
+	 * one pixel along the normal of the line in the XY plane. Otherwise they
+	 * lie on a grid with one pixel spacing in the plane normal to the line,
+	 * limited to a disk or a rectangle.
+	 * 
+	 * @param delta
+	 *            the vector from the first point to the second point, in
+	 *            pixel coordinates, with 2 or 3 elements.
+	 * @param shape
+	 *            the shape of the band.
+	 * @param thickness
+	 *            the thickness of the band, in pixels.
+	 * @param depth
+	 *            the depth of the band, in pixels, for
+	 *            {@link KymographBandShape#RECTANGLE}.
+	 * @param zScale
+	 *            the ratio of the voxel depth to the pixel width.
+	 * @return the offsets in pixel coordinates, as a flat array of X, Y, Z
+	 *         triplets.
+	 */
+	public static double[] crossSection( final double[] delta, final KymographBandShape shape, final int thickness, final int depth, final double zScale )
+	{
+		final double dx = delta[ 0 ];
+		final double dy = delta[ 1 ];
+		final double dz = delta.length > 2 ? delta[ 2 ] * zScale : 0.;
+		final double[] axes = crossSectionAxes( dx, dy, dz );
+
+		final int span = Math.max( 0, thickness / 2 - 1 );
+		final boolean planar = delta.length < 3 || shape == KymographBandShape.PLANAR;
+		final boolean rectangle = shape == KymographBandShape.RECTANGLE;
+		final int spanDepth = planar ? 0 : rectangle ? Math.max( 0, depth / 2 - 1 ) : span;
+		final double r2 = ( span + 0.5 ) * ( span + 0.5 );
+
+		final DoubleArray offsets = new DoubleArray();
+		for ( int w = -spanDepth; w <= spanDepth; w++ )
+		{
+			for ( int u = -span; u <= span; u++ )
+			{
+				if ( !planar && !rectangle && u * u + w * w > r2 )
+					continue;
+
+				offsets.addValue( u * axes[ 0 ] + w * axes[ 3 ] );
+				offsets.addValue( u * axes[ 1 ] + w * axes[ 4 ] );
+				offsets.addValue( ( u * axes[ 2 ] + w * axes[ 5 ] ) / zScale );
+			}
+		}
+		return offsets.copyArray();
+	}
+
+	/**
+	 * Returns the two unit axes of the plane normal to the specified line
+	 * vector, as a flat array of 6 elements. The first is the normal of the
+	 * line in the XY plane, the second is perpendicular to both the line and
+	 * the first one.
+	 */
+	static double[] crossSectionAxes( final double dx, final double dy, final double dz )
+	{
+		final double lxy = Math.sqrt( dx * dx + dy * dy );
+		final double e1x = lxy == 0. ? 0. : -dy / lxy;
+		final double e1y = lxy == 0. ? 1. : dx / lxy;
+		final double e1z = 0.;
+
+		// e2 = d x e1, normalized.
+		final double cx = dy * e1z - dz * e1y;
+		final double cy = dz * e1x - dx * e1z;
+		final double cz = dx * e1y - dy * e1x;
+		final double lc = Math.sqrt( cx * cx + cy * cy + cz * cz );
+		if ( lc == 0. )
+			return new double[] { e1x, e1y, e1z, 0., 0., 1. };
+		return new double[] { e1x, e1y, e1z, cx / lc, cy / lc, cz / lc };
+	}
+
+	/**
+	 * A bounded cache of stencils, keyed by the vector between the two points
+	 * of the line. Lines of consecutive frames often have the same vector, so
+	 * their stencil is computed only once. Not thread-safe: use one instance
+	 * per thread.
+	 */
+	public static class Cache
+	{
+
+		private static final int MAX_SIZE = 64;
+
+		private final KymographBandShape shape;
+
+		private final int thickness;
+
+		private final int depth;
+
+		private final double zScale;
+
+		private final int width;
+
+		private final long[] delta;
+
+		private final Map< Long, SamplingStencil > stencils;
+
+		public Cache( final int thickness, final int width, final int nDims )
+		{
+			this( KymographBandShape.PLANAR, thickness, 0, 1., width, nDims );
+		}
+
+		public Cache( final KymographBandShape shape, final int thickness, final int depth, final double zScale, final int width, final int nDims )
+		{
+			this.shape = shape;
+			this.thickness = thickness;
+			this.depth = depth;
+			this.zScale = zScale;
+			this.width = width;
+			this.delta = new long[ nDims ];
+			this.stencils = new LinkedHashMap< Long, SamplingStencil >( 16, 0.75f, true )
+			{
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry( final Map.Entry< Long, SamplingStencil > eldest )
+				{
+					return size() > MAX_SIZE;
+				}
+			};
+		}
+
+		/**
+		 * Returns the stencil for the line between the two specified points.
+		 * 
+		 * @param from
+		 *            the first point, in pixel coordinates.
+		 * @param to
+		 *            the second point, in pixel coordinates.
+		 * @return the stencil.
+		 */
+		public SamplingStencil get( final long[] from, final long[] to )
+		{
+			long key = 0;
+			for ( int d = 0; d < delta.length; d++ )
+			{
+				delta[ d ] = to[ d ] - from[ d ];
+				key = ( key << 21 ) | ( delta[ d ] & 0x1FFFFF );
+			}
+			SamplingStencil stencil = stencils.get( key );
+			if ( stencil == null )
+			{
+				stencil = create( delta, shape, thickness, depth, zScale, width );
+				stencils.put( key, stencil );
+			}
+			return stencil;
+		}
+	}
+}
@@ -0,0 +1,432 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+import java.util.function.IntFunction;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Reads the pixel values of one (channel, frame) slice of an image, 2D or 3D.
+ * Positions outside of the slice read as 0.
+ * <p>
+ * The samplers created by {@link #create(ImagePlus, int, int)} read directly
+ * the <code>byte[]</code>, <code>short[]</code> or <code>float[]</code> pixel
+ * arrays of the ImageJ stack. They are stateless and can be shared between
+ * threads.
+ * <p>
+ * A sampler can be restricted to a range of Z-planes, so that only these
+ * planes are read from the stack. Planes outside of the range read as 0.
+ */
+public abstract class SliceSampler
+{
+
+	protected final int width;
+
+	protected final int height;
+
+	protected final int depth;
+
+	/**
+	 * The first Z-plane that can be read.
+	 */
+	protected final int zmin;
+
+	/**
+	 * The last Z-plane that can be read.
+	 */
+	protected final int zmax;
+
+	protected SliceSampler( final int width, final int height, final int depth )
+	{
+		this( width, height, depth, 0, depth - 1 );
+	}
+
+	protected SliceSampler( final int width, final int height, final int depth, final int zmin, final int zmax )
+	{
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.zmin = zmin;
+		this.zmax = zmax;
+	}
+
+	/**
+	 * Returns the value of the pixel at the specified position, or 0 if the
+	 * position is outside of the slice or of the range of Z-planes.
+	 * 
+	 * @param x
+	 *            the X position.
+	 * @param y
+	 *            the Y position.
+	 * @param z
+	 *            the Z position, 0 for 2D images.
+	 * @return the pixel value.
+	 */
+	public double get( final long x, final long y, final long z )
+	{
+		if ( x < 0 || y < 0 || z < zmin || x >= width || y >= height || z > zmax )
+			return 0.;
+		return getAt( ( int ) z, ( int ) y * width + ( int ) x );
+	}
+
+	/**
+	 * Returns the value of the pixel at the specified flat index
+	 * <code>x + y * width</code> in the specified Z-plane. No bounds checking
+	 * is made.
+	 * 
+	 * @param z
+	 *            the Z position, 0 for 2D images.
+	 * @param index
+	 *            the flat index of the pixel in the plane.
+	 * @return the pixel value.
+	 */
+	public abstract double getAt( int z, int index );
+
+	/**
+	 * Returns the value at the specified real position, interpolated
+	 * linearly from the neighbor pixels: bilinear interpolation for 2D
+	 * slices, trilinear for 3D slices. Pixels outside of the slice count as
+	 * 0.
+	 * 
+	 * @param x
+	 *            the X position.
+	 * @param y
+	 *            the Y position.
+	 * @param z
+	 *            the Z position, ignored for 2D images.
+	 * @return the interpolated value.
+	 */
+	public double interpolate( final double x, final double y, final double z )
+	{
+		final double xf = Math.floor( x );
+		final double yf = Math.floor( y );
+		final int x0 = ( int ) xf;
+		final int y0 = ( int ) yf;
+		final double wx = x - xf;
+		final double wy = y - yf;
+
+		if ( depth == 1 )
+			return interpolate2D( x0, y0, 0, wx, wy );
+
+		final double zf = Math.floor( z );
+		final int z0 = ( int ) zf;
+		final double wz = z - zf;
+		final double v0 = interpolate2D( x0, y0, z0, wx, wy );
+		if ( wz == 0. )
+			return v0;
+		final double v1 = interpolate2D( x0, y0, z0 + 1, wx, wy );
+		return v0 + wz * ( v1 - v0 );
+	}
+
+	/**
+	 * Interpolates linearly the values of several samplers of the same size
+	 * at the same real position. The interpolation weights are computed once
+	 * for all samplers.
+	 * 
+	 * @param samplers
+	 *            the samplers, typically one per channel.
+	 * @param x
+	 *            the X position.
+	 * @param y
+	 *            the Y position.
+	 * @param z
+	 *            the Z position, ignored for 2D images.
+	 * @param out
+	 *            the array to store the interpolated values in, one per
+	 *            sampler.
+	 */
+	public static void interpolate( final SliceSampler[] samplers, final double x, final double y, final double z, final double[] out )
+	{
+		final double xf = Math.floor( x );
+		final double yf = Math.floor( y );
+		final int x0 = ( int ) xf;
+		final int y0 = ( int ) yf;
+		final double wx = x - xf;
+		final double wy = y - yf;
+
+		if ( samplers[ 0 ].depth == 1 )
+		{
+			for ( int c = 0; c < samplers.length; c++ )
+				out[ c ] = samplers[ c ].interpolate2D( x0, y0, 0, wx, wy );
+			return;
+		}
+
+		final double zf = Math.floor( z );
+		final int z0 = ( int ) zf;
+		final double wz = z - zf;
+		for ( int c = 0; c < samplers.length; c++ )
+		{
+			final double v0 = samplers[ c ].interpolate2D( x0, y0, z0, wx, wy );
+			if ( wz == 0. )
+			{
+				out[ c ] = v0;
+				continue;
+			}
+			final double v1 = samplers[ c ].interpolate2D( x0, y0, z0 + 1, wx, wy );
+			out[ c ] = v0 + wz * ( v1 - v0 );
+		}
+	}
+
+	private double interpolate2D( final int x0, final int y0, final int z, final double wx, final double wy )
+	{
+		final double v00, v10, v01, v11;
+		if ( x0 >= 0 && y0 >= 0 && z >= zmin && x0 + 1 < width && y0 + 1 < height && z <= zmax )
+		{
+			final int i = y0 * width + x0;
+			v00 = getAt( z, i );
+			v10 = getAt( z, i + 1 );
+			v01 = getAt( z, i + width );
+			v11 = getAt( z, i + width + 1 );
+		}
+		else
+		{
+			v00 = get( x0, y0, z );
+			v10 = get( x0 + 1, y0, z );
+			v01 = get( x0, y0 + 1, z );
+			v11 = get( x0 + 1, y0 + 1, z );
+		}
+		final double v0 = v00 + wx * ( v10 - v00 );
+		final double v1 = v01 + wx * ( v11 - v01 );
+		return v0 + wy * ( v1 - v0 );
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	/**
+	 * Returns the first Z-plane that can be read from this sampler.
+	 */
+	public int getZMin()
+	{
+		return zmin;
+	}
+
+	/**
+	 * Returns the last Z-plane that can be read from this sampler.
+	 */
+	public int getZMax()
+	{
+		return zmax;
+	}
+
+	/**
+	 * Creates a sampler that reads directly the pixel arrays of the specified
+	 * slice. Returns <code>null</code> if the image is not 8-bit, 16-bit or
+	 * 32-bit.
+	 * 
+	 * @param imp
+	 *            the image.
+	 * @param channel
+	 *            the channel (0 based).
+	 * @param frame
+	 *            the frame (0 based).
+	 * @return a new sampler, or <code>null</code>.
+	 */
+	public static SliceSampler create( final ImagePlus imp, final int channel, final int frame )
+	{
+		final ImageStack stack = imp.getStack();
+		return create( imp, channel, frame, stack::getPixels );
+	}
+
+	/**
+	 * Creates a sampler that reads directly the pixel arrays of the specified
+	 * slice, obtained from the specified plane source. Returns
+	 * <code>null</code> if the image is not 8-bit, 16-bit or 32-bit.
+	 * 
+	 * @param imp
+	 *            the image.
+	 * @param channel
+	 *            the channel (0 based).
+	 * @param frame
+	 *            the frame (0 based).
+	 * @param stack
+	 *            returns the pixel array of the plane at a stack index
+	 *            (1-based).
+	 * @return a new sampler, or <code>null</code>.
+	 */
+	public static SliceSampler create( final ImagePlus imp, final int channel, final int frame, final IntFunction< Object > stack )
+	{
+		return create( imp, channel, frame, stack, 0, imp.getNSlices() - 1 );
+	}
+
+	/**
+	 * Creates a sampler that reads directly the pixel arrays of the specified
+	 * range of Z-planes of a slice, obtained from the specified plane source.
+	 * The other planes are not read, and read as 0. Returns <code>null</code>
+	 * if the image is not 8-bit, 16-bit or 32-bit.
+	 * 
+	 * @param imp
+	 *            the image.
+	 * @param channel
+	 *            the channel (0 based).
+	 * @param frame
+	 *            the frame (0 based).
+	 * @param stack
+	 *            returns the pixel array of the plane at a stack index
+	 *            (1-based).
+	 * @param zmin
+	 *            the first Z-plane to read (0 based).
+	 * @param zmax
+	 *            the last Z-plane to read (0 based).
+	 * @return a new sampler, or <code>null</code>.
+	 */
+	public static SliceSampler create( final ImagePlus imp, final int channel, final int frame, final IntFunction< Object > stack, final int zmin, final int zmax )
+	{
+		final int width = imp.getWidth();
+		final int height = imp.getHeight();
+		final int depth = imp.getNSlices();
+		switch ( imp.getBitDepth() )
+		{
+		case 8:
+		{
+			final byte[][] planes = new byte[ depth ][];
+			for ( int z = zmin; z <= zmax; z++ )
+				planes[ z ] = ( byte[] ) stack.apply( imp.getStackIndex( channel + 1, z + 1, frame + 1 ) );
+			return new ByteSampler( width, height, planes, zmin, zmax );
+		}
+		case 16:
+		{
+			final short[][] planes = new short[ depth ][];
+			for ( int z = zmin; z <= zmax; z++ )
+				planes[ z ] = ( short[] ) stack.apply( imp.getStackIndex( channel + 1, z + 1, frame + 1 ) );
+			return new ShortSampler( width, height, planes, zmin, zmax );
+		}
+		case 32:
+		{
+			final float[][] planes = new float[ depth ][];
+			for ( int z = zmin; z <= zmax; z++ )
+				planes[ z ] = ( float[] ) stack.apply( imp.getStackIndex( channel + 1, z + 1, frame + 1 ) );
+			return new FloatSampler( width, height, planes, zmin, zmax );
+		}
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Creates a sampler that reads the pixel values through the specified
+	 * random access. The sampler is not thread-safe.
+	 * 
+	 * @param ra
+	 *            a random access on the slice, which must accept positions
+	 *            outside of the slice.
+	 * @param imp
+	 *            the image, to read the slice dimensions from.
+	 * @return a new sampler.
+	 */
+	public static < T extends RealType< T > > SliceSampler create( final RandomAccess< T > ra, final ImagePlus imp )
+	{
+		return new RandomAccessSampler<>( ra, imp.getWidth(), imp.getHeight(), imp.getNSlices() );
+	}
+
+	private static final class ByteSampler extends SliceSampler
+	{
+
+		private final byte[][] planes;
+
+		private ByteSampler( final int width, final int height, final byte[][] planes, final int zmin, final int zmax )
+		{
+			super( width, height, planes.length, zmin, zmax );
+			this.planes = planes;
+		}
+
+		@Override
+		public double getAt( final int z, final int index )
+		{
+			return planes[ z ][ index ] & 0xff;
+		}
+	}
+
+	private static final class ShortSampler extends SliceSampler
+	{
+
+		private final short[][] planes;
+
+		private ShortSampler( final int width, final int height, final short[][] planes, final int zmin, final int zmax )
+		{
+			super( width, height, planes.length, zmin, zmax );
+			this.planes = planes;
+		}
+
+		@Override
+		public double getAt( final int z, final int index )
+		{
+			return planes[ z ][ index ] & 0xffff;
+		}
+	}
+
+	private static final class FloatSampler extends SliceSampler
+	{
+
+		private final float[][] planes;
+
+		private FloatSampler( final int width, final int height, final float[][] planes, final int zmin, final int zmax )
+		{
+			super( width, height, planes.length, zmin, zmax );
+			this.planes = planes;
+		}
+
+		@Override
+		public double getAt( final int z, final int index )
+		{
+			return planes[ z ][ index ];
+		}
+	}
+
+	private static final class RandomAccessSampler< T extends RealType< T > > extends SliceSampler
+	{
+
+		private final RandomAccess< T > ra;
+
+		private RandomAccessSampler( final RandomAccess< T > ra, final int width, final int height, final int depth )
+		{
+			super( width, height, depth );
+			this.ra = ra;
+		}
+
+		@Override
+		public double getAt( final int z, final int index )
+		{
+			ra.setPosition( index % width, 0 );
+			ra.setPosition( index / width, 1 );
+			if ( ra.numDimensions() > 2 )
+				ra.setPosition( z, 2 );
+			return ra.get().getRealDouble();
+		}
+	}
+}
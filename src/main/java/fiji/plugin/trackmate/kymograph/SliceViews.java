@@ -0,0 +1,280 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.ImagePlus;
+import net.imagej.ImgPlus;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Caches the views on the (channel, frame) slices of an image, for the
+ * duration of one run of a kymograph creator.
+ * <p>
+ * The image is wrapped once, and the views on each slice are built the first
+ * time they are requested and then reused. This class is thread-safe, but the
+ * {@link Accessors} it creates are not: each worker thread must use its own.
+ * <p>
+ * If the image is a virtual stack, its planes are read through a
+ * {@link PlanePrefetcher}: when accessors move to a frame, the planes of the
+ * next frames are loaded in the background. The views on the slices are then
+ * built on the cached planes each time they are requested, and not kept.
+ *
+ * @param <T>
+ *            the pixel type of the image.
+ */
+public class SliceViews< T extends RealType< T > & NativeType< T > >
+{
+
+	private final ImagePlus imp;
+
+	private final ImgPlus< T > img;
+
+	private final int nChannels;
+
+	private final AtomicReferenceArray< RandomAccessible< T > > extended;
+
+	private final PlanePrefetcher prefetcher;
+
+	/**
+	 * Creates the views on the slices of the specified image.
+	 * 
+	 * @param imp
+	 *            the image.
+	 * @param numThreads
+	 *            the number of threads sampling the image, that sizes the
+	 *            cache of planes of virtual stacks.
+	 */
+	@SuppressWarnings( "unchecked" )
+	public SliceViews( final ImagePlus imp, final int numThreads )
+	{
+		this.imp = imp;
+		this.img = TMUtils.rawWraps( imp );
+		final int bitDepth = imp.getBitDepth();
+		final boolean direct = bitDepth == 8 || bitDepth == 16 || bitDepth == 32;
+		this.prefetcher = imp.getStack().isVirtual() && direct ? new PlanePrefetcher( imp, PlanePrefetcher.cachedFrames( numThreads ) ) : null;
+		this.nChannels = imp.getNChannels();
+		final int nSlices = nChannels * imp.getNFrames();
+		this.extended = new AtomicReferenceArray<>( nSlices );
+	}
+
+	/**
+	 * Returns the slice of the image at the specified channel and frame,
+	 * extended with zeros.
+	 * 
+	 * @param channel
+	 *            the channel (0 based).
+	 * @param frame
+	 *            the frame (0 based).
+	 * @return a view on the slice.
+	 */
+	public RandomAccessible< T > extended( final int channel, final int frame )
+	{
+		if ( prefetcher != null )
+			return Views.extendZero( cachedSlice( channel, frame ) );
+
+		final int i = frame * nChannels + channel;
+		RandomAccessible< T > view = extended.get( i );
+		if ( view == null )
+		{
+			view = Views.extendZero( TMUtils.hyperSlice( img, channel, frame ) );
+			extended.compareAndSet( i, null, view );
+		}
+		return view;
+	}
+
+	/**
+	 * Returns a new sampler on a range of Z-planes of the slice at the
+	 * specified channel and frame. Only the planes of the range are read
+	 * from the image, if its type allows reading its pixel arrays directly.
+	 * If the image is a virtual stack, the same range of planes of the next
+	 * frames is requested to be loaded in the background, since the region
+	 * sampled in consecutive frames is usually close.
+	 * 
+	 * @param channel
+	 *            the channel (0 based).
+	 * @param frame
+	 *            the frame (0 based).
+	 * @param zmin
+	 *            the first Z-plane to read (0 based).
+	 * @param zmax
+	 *            the last Z-plane to read (0 based).
+	 * @return a new sampler.
+	 */
+	public SliceSampler sampler( final int channel, final int frame, final int zmin, final int zmax )
+	{
+		if ( prefetcher != null )
+			prefetcher.prefetchAfter( frame, zmin, zmax );
+		final SliceSampler sampler = prefetcher != null
+				? SliceSampler.create( imp, channel, frame, prefetcher::getPixels, zmin, zmax )
+				: SliceSampler.create( imp, channel, frame, imp.getStack()::getPixels, zmin, zmax );
+		if ( sampler != null )
+			return sampler;
+		return SliceSampler.create( extended( channel, frame ).randomAccess(), imp );
+	}
+
+	/**
+	 * Requests the planes of the frames following the specified one to be
+	 * loaded in the background. Does nothing if the image is not a virtual
+	 * stack. Accessors do this by themselves when they move to a frame.
+	 * 
+	 * @param frame
+	 *            the frame about to be processed (0 based).
+	 */
+	public void prefetchAfter( final int frame )
+	{
+		if ( prefetcher != null )
+			prefetcher.prefetchAfter( frame );
+	}
+
+	/**
+	 * Wraps the cached planes of the slice at the specified channel and frame
+	 * in an image, with 2 or 3 dimensions.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private RandomAccessibleInterval< T > cachedSlice( final int channel, final int frame )
+	{
+		final int width = imp.getWidth();
+		final int height = imp.getHeight();
+		final int depth = imp.getNSlices();
+		final List< RandomAccessibleInterval< T > > planes = new ArrayList<>( depth );
+		for ( int z = 0; z < depth; z++ )
+		{
+			final Object pixels = prefetcher.getPixels( imp.getStackIndex( channel + 1, z + 1, frame + 1 ) );
+			final RandomAccessibleInterval< ? > plane;
+			if ( pixels instanceof byte[] )
+				plane = ArrayImgs.unsignedBytes( ( byte[] ) pixels, width, height );
+			else if ( pixels instanceof short[] )
+				plane = ArrayImgs.unsignedShorts( ( short[] ) pixels, width, height );
+			else
+				plane = ArrayImgs.floats( ( float[] ) pixels, width, height );
+			planes.add( ( RandomAccessibleInterval< T > ) plane );
+		}
+		return depth == 1 ? planes.get( 0 ) : Views.stack( planes );
+	}
+
+	/**
+	 * Creates a new set of accessors on the slices of this cache, to be used
+	 * by a single thread.
+	 * 
+	 * @return new accessors.
+	 */
+	public Accessors accessors()
+	{
+		return new Accessors();
+	}
+
+	/**
+	 * Random accesses and samplers on the slices of one frame, for all
+	 * channels. They are kept as long as the same frame is requested, and
+	 * recreated when another frame is.
+	 */
+	public class Accessors
+	{
+
+		private final RandomAccess< T >[] randomAccesses;
+
+		private final SliceSampler[] samplers;
+
+		private int frame = -1;
+
+		@SuppressWarnings( "unchecked" )
+		private Accessors()
+		{
+			this.randomAccesses = new RandomAccess[ nChannels ];
+			this.samplers = new SliceSampler[ nChannels ];
+		}
+
+		private void moveTo( final int frame )
+		{
+			if ( frame == this.frame )
+				return;
+
+			for ( int c = 0; c < nChannels; c++ )
+			{
+				randomAccesses[ c ] = null;
+				samplers[ c ] = null;
+			}
+			this.frame = frame;
+			prefetchAfter( frame );
+		}
+
+		/**
+		 * Returns a random access on the slice at the specified channel and
+		 * frame.
+		 * 
+		 * @param channel
+		 *            the channel (0 based).
+		 * @param frame
+		 *            the frame (0 based).
+		 * @return a random access.
+		 */
+		public RandomAccess< T > randomAccess( final int channel, final int frame )
+		{
+			moveTo( frame );
+			RandomAccess< T > ra = randomAccesses[ channel ];
+			if ( ra == null )
+			{
+				ra = extended( channel, frame ).randomAccess();
+				randomAccesses[ channel ] = ra;
+			}
+			return ra;
+		}
+
+		/**
+		 * Returns a sampler on the slice at the specified channel and frame.
+		 * The sampler reads directly the pixel arrays of the image if its
+		 * type allows it, and reads through a random access otherwise.
+		 * 
+		 * @param channel
+		 *            the channel (0 based).
+		 * @param frame
+		 *            the frame (0 based).
+		 * @return a sampler.
+		 */
+		public SliceSampler sampler( final int channel, final int frame )
+		{
+			moveTo( frame );
+			SliceSampler sampler = samplers[ channel ];
+			if ( sampler == null )
+			{
+				sampler = prefetcher != null
+						? SliceSampler.create( imp, channel, frame, prefetcher::getPixels )
+						: SliceSampler.create( imp, channel, frame );
+				if ( sampler == null )
+					sampler = SliceSampler.create( randomAccess( channel, frame ), imp );
+				samplers[ channel ] = sampler;
+			}
+			return sampler;
+		}
+	}
+}
@@ -0,0 +1,220 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.ModelChangeEvent;
+import fiji.plugin.trackmate.ModelChangeListener;
+import fiji.plugin.trackmate.Spot;
+
+/**
+ * Index of the spots of the tracks of a model, by frame.
+ * <p>
+ * For each track that is queried, a table mapping a frame to the spot of the
+ * track in this frame is built once, and reused for subsequent queries. The
+ * tables are discarded when the model changes, provided this index is
+ * registered as a {@link ModelChangeListener} of the model. An index created
+ * with {@link #create(Model)} must be closed with {@link #close()} when it is
+ * not needed anymore, so that the model does not keep a reference to it.
+ * <p>
+ * This class is thread-safe.
+ */
+public class TrackFrameIndex implements ModelChangeListener, AutoCloseable
+{
+
+	private final Model model;
+
+	private final Map< Integer, FrameTable > tables;
+
+	public TrackFrameIndex( final Model model )
+	{
+		this.model = model;
+		this.tables = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Creates a new index for the specified model, and registers it as a
+	 * listener of the model so that it stays in sync with it. The index must
+	 * be closed when not used anymore.
+	 * 
+	 * @param model
+	 *            the model to index.
+	 * @return a new index.
+	 */
+	public static TrackFrameIndex create( final Model model )
+	{
+		final TrackFrameIndex index = new TrackFrameIndex( model );
+		model.addModelChangeListener( index );
+		return index;
+	}
+
+	public Model getModel()
+	{
+		return model;
+	}
+
+	/**
+	 * Returns the spot of the specified track in the specified frame, or
+	 * <code>null</code> if the track has no spot in this frame or does not
+	 * exist.
+	 * 
+	 * @param trackID
+	 *            the track ID.
+	 * @param frame
+	 *            the frame (0 based).
+	 * @return the spot, or <code>null</code>.
+	 */
+	public Spot getSpot( final Integer trackID, final int frame )
+	{
+		final FrameTable table = table( trackID );
+		if ( table == null )
+			return null;
+		return table.get( frame );
+	}
+
+	/**
+	 * Returns the first frame of the specified track, or -1 if the track does
+	 * not exist or is empty.
+	 * 
+	 * @param trackID
+	 *            the track ID.
+	 * @return the first frame of the track.
+	 */
+	public int getMinFrame( final Integer trackID )
+	{
+		final FrameTable table = table( trackID );
+		if ( table == null )
+			return -1;
+		return table.minFrame;
+	}
+
+	/**
+	 * Returns the last frame of the specified track, or -1 if the track does
+	 * not exist or is empty.
+	 * 
+	 * @param trackID
+	 *            the track ID.
+	 * @return the last frame of the track.
+	 */
+	public int getMaxFrame( final Integer trackID )
+	{
+		final FrameTable table = table( trackID );
+		if ( table == null )
+			return -1;
+		return table.minFrame + table.spots.length - 1;
+	}
+
+	/**
+	 * Discards all the tables built so far.
+	 */
+	public void clear()
+	{
+		tables.clear();
+	}
+
+	/**
+	 * Unregisters this index from the model and discards all the tables built
+	 * so far. The index can still be queried afterwards, but will not follow
+	 * the changes made to the model anymore.
+	 */
+	@Override
+	public void close()
+	{
+		model.removeModelChangeListener( this );
+		clear();
+	}
+
+	@Override
+	public void modelChanged( final ModelChangeEvent event )
+	{
+		// Visibility does not change the content of tracks.
+		if ( event.getEventID() == ModelChangeEvent.TRACKS_VISIBILITY_CHANGED )
+			return;
+		clear();
+	}
+
+	private FrameTable table( final Integer trackID )
+	{
+		if ( trackID == null )
+			return null;
+
+		/*
+		 * Built under the lock of the map entry, so that a concurrent clear()
+		 * waits for the table and removes it, instead of being overwritten by a
+		 * table built from the model before the change.
+		 */
+		return tables.computeIfAbsent( trackID, this::build );
+	}
+
+	private FrameTable build( final Integer trackID )
+	{
+		final Set< Spot > spots = model.getTrackModel().trackSpots( trackID );
+		if ( spots == null || spots.isEmpty() )
+			return null;
+
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+		for ( final Spot spot : spots )
+		{
+			final int frame = spot.getFeature( Spot.FRAME ).intValue();
+			if ( frame < min )
+				min = frame;
+			if ( frame > max )
+				max = frame;
+		}
+
+		final Spot[] table = new Spot[ max - min + 1 ];
+		for ( final Spot spot : spots )
+		{
+			final int i = spot.getFeature( Spot.FRAME ).intValue() - min;
+			if ( table[ i ] == null )
+				table[ i ] = spot;
+		}
+		return new FrameTable( min, table );
+	}
+
+	private static final class FrameTable
+	{
+
+		private final int minFrame;
+
+		private final Spot[] spots;
+
+		private FrameTable( final int minFrame, final Spot[] spots )
+		{
+			this.minFrame = minFrame;
+			this.spots = spots;
+		}
+
+		private Spot get( final int frame )
+		{
+			final int i = frame - minFrame;
+			if ( i < 0 || i >= spots.length )
+				return null;
+			return spots[ i ];
+		}
+	}
+}
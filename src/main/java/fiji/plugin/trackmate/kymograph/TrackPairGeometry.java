@@ -0,0 +1,445 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+import java.util.Arrays;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.kymograph.ui.KymographUtils;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.ImagePlus;
+
+/**
+ * The geometry of the line joining two tracks, for each frame in which both
+ * tracks have spots: the positions of its two ends, its length and its
+ * orientation. Spots are looked up once, when the geometry is created, and
+ * the values are stored in primitive arrays indexed by frame. The accessors
+ * that fill an array given by the caller do not allocate, and are meant for
+ * the loops over the frames.
+ * <p>
+ * Instances are immutable and can be shared between threads. They do not
+ * follow the edits of the model: a new geometry must be created after the
+ * model changes.
+ */
+public final class TrackPairGeometry
+{
+
+	private final Integer trackID1;
+
+	private final Integer trackID2;
+
+	private final int firstFrame;
+
+	private final int nFrames;
+
+	private final int nDims;
+
+	/**
+	 * Whether the two tracks have a spot in each frame.
+	 */
+	private final boolean[] present;
+
+	/**
+	 * The positions of the spots of the first track, in pixel coordinates,
+	 * <code>nDims</code> values per frame.
+	 */
+	private final double[] positions1;
+
+	/**
+	 * The positions of the spots of the second track, in pixel coordinates,
+	 * <code>nDims</code> values per frame.
+	 */
+	private final double[] positions2;
+
+	/**
+	 * The distance between the two spots, in physical units.
+	 */
+	private final double[] lengths;
+
+	/**
+	 * The distance in the XY plane between the pixels of the two spots.
+	 */
+	private final double[] pixelLengths;
+
+	/**
+	 * The angle of the line in the XY plane, between the pixels of the two
+	 * spots.
+	 */
+	private final double[] angles;
+
+	/**
+	 * The X and Y components of the unit normal of the line in the XY plane.
+	 */
+	private final double[] nx;
+
+	private final double[] ny;
+
+	/**
+	 * The time of the frame, read from the spots.
+	 */
+	private final double[] times;
+
+	private TrackPairGeometry( final Integer trackID1, final Integer trackID2, final int firstFrame, final int nFrames, final int nDims )
+	{
+		this.trackID1 = trackID1;
+		this.trackID2 = trackID2;
+		this.firstFrame = firstFrame;
+		this.nFrames = nFrames;
+		this.nDims = nDims;
+		this.present = new boolean[ nFrames ];
+		this.positions1 = new double[ nFrames * nDims ];
+		this.positions2 = new double[ nFrames * nDims ];
+		this.lengths = new double[ nFrames ];
+		this.pixelLengths = new double[ nFrames ];
+		this.angles = new double[ nFrames ];
+		this.nx = new double[ nFrames ];
+		this.ny = new double[ nFrames ];
+		this.times = new double[ nFrames ];
+		Arrays.fill( lengths, Double.NaN );
+		Arrays.fill( pixelLengths, Double.NaN );
+		Arrays.fill( angles, Double.NaN );
+	}
+
+	/**
+	 * Computes the geometry of the line joining two tracks, in the pixel
+	 * coordinates of the specified image.
+	 * 
+	 * @param index
+	 *            the index of the tracks.
+	 * @param imp
+	 *            the image to get the calibration and the dimensionality
+	 *            from.
+	 * @param trackID1
+	 *            the ID of the first track.
+	 * @param trackID2
+	 *            the ID of the second track.
+	 * @return a new geometry.
+	 */
+	public static TrackPairGeometry create( final TrackFrameIndex index, final ImagePlus imp, final Integer trackID1, final Integer trackID2 )
+	{
+		final double[] calibration = TMUtils.getSpatialCalibration( imp );
+		return create( index, Arrays.copyOf( calibration, imp.getNSlices() > 1 ? 3 : 2 ), trackID1, trackID2 );
+	}
+
+	/**
+	 * Computes the geometry of the line joining two tracks, in pixel
+	 * coordinates.
+	 * 
+	 * @param index
+	 *            the index of the tracks.
+	 * @param calibration
+	 *            the pixel sizes, with 2 or 3 elements for 2D or 3D images.
+	 * @param trackID1
+	 *            the ID of the first track.
+	 * @param trackID2
+	 *            the ID of the second track.
+	 * @return a new geometry.
+	 */
+	public static TrackPairGeometry create( final TrackFrameIndex index, final double[] calibration, final Integer trackID1, final Integer trackID2 )
+	{
+		final int[] minmax = KymographUtils.getMinMaxTimePoints( index, trackID1, trackID2 );
+		final int nFrames = Math.max( 0, minmax[ 1 ] - minmax[ 0 ] + 1 );
+		final int nDims = calibration.length;
+		final TrackPairGeometry geometry = new TrackPairGeometry( trackID1, trackID2, minmax[ 0 ], nFrames, nDims );
+		for ( int i = 0; i < nFrames; i++ )
+		{
+			final int tp = i + minmax[ 0 ];
+			final Spot s1 = index.getSpot( trackID1, tp );
+			final Spot s2 = index.getSpot( trackID2, tp );
+			if ( s1 != null )
+				geometry.times[ i ] = s1.getFeature( Spot.POSITION_T );
+			else if ( s2 != null )
+				geometry.times[ i ] = s2.getFeature( Spot.POSITION_T );
+			else
+				geometry.times[ i ] = Double.NaN;
+
+			if ( s1 == null || s2 == null )
+				continue;
+
+			geometry.present[ i ] = true;
+			for ( int d = 0; d < nDims; d++ )
+			{
+				geometry.positions1[ i * nDims + d ] = s1.getDoublePosition( d ) / calibration[ d ];
+				geometry.positions2[ i * nDims + d ] = s2.getDoublePosition( d ) / calibration[ d ];
+			}
+			geometry.lengths[ i ] = Math.sqrt( s1.squareDistanceTo( s2 ) );
+
+			final long dx = Math.round( geometry.positions2[ i * nDims ] ) - Math.round( geometry.positions1[ i * nDims ] );
+			final long dy = Math.round( geometry.positions2[ i * nDims + 1 ] ) - Math.round( geometry.positions1[ i * nDims + 1 ] );
+			geometry.pixelLengths[ i ] = Math.sqrt( dx * dx + dy * dy );
+			geometry.angles[ i ] = Math.atan2( dy, dx );
+			geometry.nx[ i ] = -Math.sin( geometry.angles[ i ] );
+			geometry.ny[ i ] = Math.cos( geometry.angles[ i ] );
+		}
+		return geometry;
+	}
+
+	/**
+	 * Returns <code>true</code> if this geometry is the one of the line
+	 * joining the two specified tracks.
+	 */
+	public boolean isFor( final Integer trackID1, final Integer trackID2 )
+	{
+		return this.trackID1.equals( trackID1 ) && this.trackID2.equals( trackID2 );
+	}
+
+	/**
+	 * Returns the first frame of this geometry, that is the first frame in
+	 * which both tracks have a spot.
+	 */
+	public int getFirstFrame()
+	{
+		return firstFrame;
+	}
+
+	/**
+	 * Returns the last frame of this geometry, that is the last frame in
+	 * which both tracks have a spot. It is before the first frame if the two
+	 * tracks do not overlap in time.
+	 */
+	public int getLastFrame()
+	{
+		return firstFrame + nFrames - 1;
+	}
+
+	/**
+	 * Returns <code>true</code> if the two tracks have a spot in the specified
+	 * frame.
+	 */
+	public boolean contains( final int tp )
+	{
+		final int i = tp - firstFrame;
+		return i >= 0 && i < nFrames && present[ i ];
+	}
+
+	/**
+	 * Returns the position of the spot of the first track in the specified
+	 * frame, in pixel coordinates, or <code>null</code> if one of the tracks
+	 * does not have a spot in it.
+	 */
+	public double[] getPosition1( final int tp )
+	{
+		return contains( tp ) ? position( positions1, tp - firstFrame ) : null;
+	}
+
+	/**
+	 * Writes the position of the spot of the first track in the specified
+	 * frame, in pixel coordinates, in the specified array.
+	 * 
+	 * @param tp
+	 *            the frame.
+	 * @param out
+	 *            the array to write in, with at least 2 elements in 2D and 3
+	 *            in 3D.
+	 * @return <code>false</code> if one of the tracks does not have a spot in
+	 *         the frame, in which case the array is not modified.
+	 */
+	public boolean getPosition1( final int tp, final double[] out )
+	{
+		return position( positions1, tp, out );
+	}
+
+	/**
+	 * Returns the position of the spot of the second track in the specified
+	 * frame, in pixel coordinates, or <code>null</code> if one of the tracks
+	 * does not have a spot in it.
+	 */
+	public double[] getPosition2( final int tp )
+	{
+		return contains( tp ) ? position( positions2, tp - firstFrame ) : null;
+	}
+
+	/**
+	 * Writes the position of the spot of the second track in the specified
+	 * frame, in pixel coordinates, in the specified array.
+	 * 
+	 * @param tp
+	 *            the frame.
+	 * @param out
+	 *            the array to write in, with at least 2 elements in 2D and 3
+	 *            in 3D.
+	 * @return <code>false</code> if one of the tracks does not have a spot in
+	 *         the frame, in which case the array is not modified.
+	 */
+	public boolean getPosition2( final int tp, final double[] out )
+	{
+		return position( positions2, tp, out );
+	}
+
+	/**
+	 * Returns the pixel of the spot of the first track in the specified frame,
+	 * or <code>null</code> if one of the tracks does not have a spot in it.
+	 */
+	public long[] getCoords1( final int tp )
+	{
+		return contains( tp ) ? coords( positions1, tp - firstFrame ) : null;
+	}
+
+	/**
+	 * Writes the pixel of the spot of the first track in the specified frame
+	 * in the specified array.
+	 * 
+	 * @param tp
+	 *            the frame.
+	 * @param out
+	 *            the array to write in, with at least 2 elements in 2D and 3
+	 *            in 3D.
+	 * @return <code>false</code> if one of the tracks does not have a spot in
+	 *         the frame, in which case the array is not modified.
+	 */
+	public boolean getCoords1( final int tp, final long[] out )
+	{
+		return coords( positions1, tp, out );
+	}
+
+	/**
+	 * Returns the pixel of the spot of the second track in the specified
+	 * frame, or <code>null</code> if one of the tracks does not have a spot in
+	 * it.
+	 */
+	public long[] getCoords2( final int tp )
+	{
+		return contains( tp ) ? coords( positions2, tp - firstFrame ) : null;
+	}
+
+	/**
+	 * Writes the pixel of the spot of the second track in the specified frame
+	 * in the specified array.
+	 * 
+	 * @param tp
+	 *            the frame.
+	 * @param out
+	 *            the array to write in, with at least 2 elements in 2D and 3
+	 *            in 3D.
+	 * @return <code>false</code> if one of the tracks does not have a spot in
+	 *         the frame, in which case the array is not modified.
+	 */
+	public boolean getCoords2( final int tp, final long[] out )
+	{
+		return coords( positions2, tp, out );
+	}
+
+	/**
+	 * Returns the distance between the two spots in the specified frame, in
+	 * physical units, or <code>NaN</code> if one of the tracks does not have
+	 * a spot in it.
+	 */
+	public double getLength( final int tp )
+	{
+		return contains( tp ) ? lengths[ tp - firstFrame ] : Double.NaN;
+	}
+
+	/**
+	 * Returns the distance in the XY plane between the pixels of the two
+	 * spots in the specified frame, or <code>NaN</code> if one of the tracks
+	 * does not have a spot in it.
+	 */
+	public double getPixelLength( final int tp )
+	{
+		return contains( tp ) ? pixelLengths[ tp - firstFrame ] : Double.NaN;
+	}
+
+	/**
+	 * Returns the angle of the line in the XY plane between the pixels of the
+	 * two spots in the specified frame, or <code>NaN</code> if one of the
+	 * tracks does not have a spot in it.
+	 */
+	public double getAngle( final int tp )
+	{
+		return contains( tp ) ? angles[ tp - firstFrame ] : Double.NaN;
+	}
+
+	/**
+	 * Returns the unit normal of the line in the XY plane in the specified
+	 * frame, or <code>null</code> if one of the tracks does not have a spot
+	 * in it.
+	 */
+	public double[] getNormal( final int tp )
+	{
+		if ( !contains( tp ) )
+			return null;
+		final int i = tp - firstFrame;
+		return new double[] { nx[ i ], ny[ i ] };
+	}
+
+	/**
+	 * Writes the unit normal of the line in the XY plane in the specified
+	 * frame in the first two elements of the specified array.
+	 * 
+	 * @param tp
+	 *            the frame.
+	 * @param out
+	 *            the array to write in.
+	 * @return <code>false</code> if one of the tracks does not have a spot in
+	 *         the frame, in which case the array is not modified.
+	 */
+	public boolean getNormal( final int tp, final double[] out )
+	{
+		if ( !contains( tp ) )
+			return false;
+		final int i = tp - firstFrame;
+		out[ 0 ] = nx[ i ];
+		out[ 1 ] = ny[ i ];
+		return true;
+	}
+
+	/**
+	 * Returns the time of the specified frame, read from the spots of the
+	 * tracks, or <code>NaN</code> if none of them has a spot in it.
+	 */
+	public double getTime( final int tp )
+	{
+		final int i = tp - firstFrame;
+		return i >= 0 && i < nFrames ? times[ i ] : Double.NaN;
+	}
+
+	private double[] position( final double[] positions, final int i )
+	{
+		return Arrays.copyOfRange( positions, i * nDims, ( i + 1 ) * nDims );
+	}
+
+	private boolean position( final double[] positions, final int tp, final double[] out )
+	{
+		if ( !contains( tp ) )
+			return false;
+		System.arraycopy( positions, ( tp - firstFrame ) * nDims, out, 0, nDims );
+		return true;
+	}
+
+	private boolean coords( final double[] positions, final int tp, final long[] out )
+	{
+		if ( !contains( tp ) )
+			return false;
+		final int offset = ( tp - firstFrame ) * nDims;
+		for ( int d = 0; d < nDims; d++ )
+			out[ d ] = Math.round( positions[ offset + d ] );
+		return true;
+	}
+
+	private long[] coords( final double[] positions, final int i )
+	{
+		final long[] coords = new long[ nDims ];
+		for ( int d = 0; d < nDims; d++ )
+			coords[ d ] = Math.round( positions[ i * nDims + d ] );
+		return coords;
+	}
+}
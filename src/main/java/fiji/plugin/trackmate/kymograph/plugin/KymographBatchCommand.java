@@ -0,0 +1,326 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph.plugin;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.io.TmXmlReader;
+import fiji.plugin.trackmate.kymograph.KymographAlignment;
+import fiji.plugin.trackmate.kymograph.KymographBandShape;
+import fiji.plugin.trackmate.kymograph.KymographBatchCreator;
+import fiji.plugin.trackmate.kymograph.KymographCreationParams;
+import fiji.plugin.trackmate.kymograph.KymographInterpolation;
+import fiji.plugin.trackmate.kymograph.KymographOutputMode;
+import fiji.plugin.trackmate.kymograph.KymographProjectionMethod;
+import fiji.plugin.trackmate.kymograph.KymographSamplingMethod;
+import fiji.plugin.trackmate.kymograph.KymographSlabAxis;
+import fiji.plugin.trackmate.kymograph.RegisteredImageCreator;
+import fiji.plugin.trackmate.kymograph.TrackFrameIndex;
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * Creates the kymographs of all the TrackMate XML files of a folder, and saves
+ * them as TIFF files. Runs headlessly, for instance with:
+ * 
+ * <pre>
+ * ImageJ-linux64 --headless --run "Batch TrackMate Kymographs" \
+ *     "inputFolder='/data/movies',outputFolder='/data/kymographs',pairs='1-2, 3-4',parallelism=4"
+ * </pre>
+ * 
+ * The image of each file is the one referenced in its settings. Registered
+ * images can also be saved for the kymographs between two tracks.
+ */
+@Plugin( type = Command.class, name = "Batch TrackMate Kymographs", menuPath = "Plugins>Tracking>Batch TrackMate Kymographs", headless = true )
+public class KymographBatchCommand implements Command
+{
+
+	private static final KymographCreationParams DEFAULTS = KymographCreationParams.create().get();
+
+	@Parameter( label = "Folder of TrackMate XML files", style = "directory" )
+	private File inputFolder;
+
+	@Parameter( label = "Output folder", style = "directory" )
+	private File outputFolder;
+
+	@Parameter( label = "Track pairs", description = "The track IDs of each kymograph, joined by '-', "
+			+ "and kymographs separated by ','. For instance '1-2, 3-4'. "
+			+ "More than two track IDs make a path through these tracks." )
+	private String pairs;
+
+	@Parameter( label = "Spline path", description = "Whether paths through more than two tracks are splines rather than polylines." )
+	private boolean spline = DEFAULTS.spline;
+
+	@Parameter( label = "Thickness", min = "1" )
+	private int thickness = DEFAULTS.thickness;
+
+	@Parameter( label = "Band shape", description = "The shape of the band around the line, in 3D." )
+	private KymographBandShape bandShape = DEFAULTS.bandShape;
+
+	@Parameter( label = "Band depth", min = "1", description = "Only used with the rectangle band shape." )
+	private int bandDepth = DEFAULTS.bandDepth;
+
+	@Parameter( label = "Projection method" )
+	private KymographProjectionMethod projectionMethod = DEFAULTS.projectionMethod;
+
+	@Parameter( label = "Percentile", min = "0", max = "100", description = "Only used with the percentile projection." )
+	private double percentile = DEFAULTS.percentile;
+
+	@Parameter( label = "Alignment" )
+	private KymographAlignment alignment = DEFAULTS.alignment;
+
+	@Parameter( label = "Sampling method" )
+	private KymographSamplingMethod samplingMethod = DEFAULTS.samplingMethod;
+
+	@Parameter( label = "Sampling step", description = "In physical units. 0 for the pixel size." )
+	private double samplingStep = DEFAULTS.samplingStep;
+
+	@Parameter( label = "Output", description = "Where the kymographs are stored while they are created. "
+			+ "On-demand kymographs are created in memory, since they are saved entirely." )
+	private KymographOutputMode outputMode = DEFAULTS.outputMode;
+
+	@Parameter( label = "Also save registered images", description = "Only for kymographs between two tracks." )
+	private boolean registered = false;
+
+	@Parameter( label = "Registration interpolation" )
+	private KymographInterpolation interpolation = DEFAULTS.interpolation;
+
+	@Parameter( label = "Registration slab axis (3D)" )
+	private KymographSlabAxis slabAxis = DEFAULTS.slabAxis;
+
+	@Parameter( label = "Registration slab depth (3D)", min = "1" )
+	private int slabDepth = DEFAULTS.slabDepth;
+
+	@Parameter( label = "Files processed in parallel", min = "1" )
+	private int parallelism = 1;
+
+	@Parameter
+	private LogService log;
+
+	@Override
+	public void run()
+	{
+		final List< List< Integer > > trackIDs;
+		try
+		{
+			trackIDs = parsePairs( pairs );
+		}
+		catch ( final NumberFormatException e )
+		{
+			log.error( "Could not read the track pairs '" + pairs + "': " + e.getMessage() );
+			return;
+		}
+		if ( trackIDs.isEmpty() )
+		{
+			log.error( "No track pairs were specified." );
+			return;
+		}
+
+		final File[] files = inputFolder.listFiles( ( dir, name ) -> name.toLowerCase().endsWith( ".xml" ) );
+		if ( files == null || files.length == 0 )
+		{
+			log.error( "No TrackMate XML file in " + inputFolder );
+			return;
+		}
+		Arrays.sort( files );
+		if ( !outputFolder.exists() && !outputFolder.mkdirs() )
+		{
+			log.error( "Could not create the output folder " + outputFolder );
+			return;
+		}
+
+		/*
+		 * The cores are shared among the files processed at the same time.
+		 */
+
+		final int nParallel = Math.max( 1, Math.min( parallelism, files.length ) );
+		final int numThreads = Math.max( 1, Runtime.getRuntime().availableProcessors() / nParallel );
+		final ExecutorService executor = Executors.newFixedThreadPool( nParallel );
+		final List< Future< ? > > futures = new ArrayList<>( files.length );
+		for ( final File file : files )
+			futures.add( executor.submit( () -> process( file, trackIDs, numThreads ) ) );
+
+		// A file that fails does not stop the others.
+		for ( int i = 0; i < files.length; i++ )
+		{
+			try
+			{
+				futures.get( i ).get();
+			}
+			catch ( final ExecutionException e )
+			{
+				log.error( files[ i ].getName() + ": batch kymograph creation failed.", e.getCause() );
+			}
+			catch ( final InterruptedException e )
+			{
+				log.error( "Batch kymograph creation was interrupted." );
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * Creates and saves the kymographs of one TrackMate file.
+	 */
+	private void process( final File file, final List< List< Integer > > trackIDs, final int numThreads )
+	{
+		log.info( "Processing " + file.getName() );
+		final TmXmlReader reader = new TmXmlReader( file );
+		if ( !reader.isReadingOk() )
+		{
+			log.error( file.getName() + ": " + reader.getErrorMessage() );
+			return;
+		}
+		final Model model = reader.getModel();
+		final ImagePlus imp = reader.readImage();
+		if ( imp == null )
+		{
+			log.error( file.getName() + ": Could not load the image. " + reader.getErrorMessage() );
+			return;
+		}
+
+		final List< KymographCreationParams > paramsList = new ArrayList<>( trackIDs.size() );
+		try
+		{
+			for ( final List< Integer > ids : trackIDs )
+				paramsList.add( KymographCreationParams.create()
+						.trackIDs( ids )
+						.spline( spline )
+						.thickness( thickness )
+						.bandShape( bandShape )
+						.bandDepth( bandDepth )
+						.projectionMethod( projectionMethod )
+						.percentile( percentile )
+						.alignment( alignment )
+						.samplingMethod( samplingMethod )
+						.samplingStep( samplingStep )
+						.outputMode( outputMode == KymographOutputMode.ON_DEMAND ? KymographOutputMode.IN_MEMORY : outputMode )
+						.interpolation( interpolation )
+						.slabAxis( slabAxis )
+						.slabDepth( slabDepth )
+						.get() );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			log.error( file.getName() + ": " + e.getMessage() );
+			return;
+		}
+
+		final String baseName = file.getName().substring( 0, file.getName().length() - 4 );
+		// The model is not edited, so the index does not need to follow it.
+		try ( final TrackFrameIndex index = new TrackFrameIndex( model ) )
+		{
+			final KymographBatchCreator creator = new KymographBatchCreator( index, imp, paramsList );
+			creator.setNumThreads( numThreads );
+			if ( !creator.checkInput() || !creator.process() )
+			{
+				log.error( file.getName() + ": " + creator.getErrorMessage() );
+				return;
+			}
+
+			for ( int i = 0; i < trackIDs.size(); i++ )
+				save( file, creator.getResult().get( i ), baseName + "_Kymograph_" + name( trackIDs.get( i ) ) );
+
+			if ( !registered )
+				return;
+
+			for ( final KymographCreationParams params : paramsList )
+			{
+				if ( params.isPath() )
+				{
+					log.warn( file.getName() + ": No registered image for the path " + params.trackIDs + "." );
+					continue;
+				}
+				final RegisteredImageCreator registeredCreator = new RegisteredImageCreator( index, imp, params );
+				registeredCreator.setNumThreads( numThreads );
+				if ( !registeredCreator.checkInput() || !registeredCreator.process() )
+				{
+					log.error( file.getName() + ": " + registeredCreator.getErrorMessage() );
+					continue;
+				}
+				save( file, registeredCreator.getResult(), baseName + "_Registered_" + name( params.trackIDs ) );
+			}
+		}
+	}
+
+	private void save( final File file, final ImagePlus output, final String name )
+	{
+		final File out = new File( outputFolder, name + ".tif" );
+		if ( !IJ.saveAsTiff( output, out.getAbsolutePath() ) )
+			log.error( file.getName() + ": Could not save " + out );
+		else
+			log.info( "Saved " + out );
+	}
+
+	/**
+	 * Returns the track IDs joined by '-', to name the output files.
+	 */
+	private static String name( final List< Integer > trackIDs )
+	{
+		return trackIDs.toString().replaceAll( "[\\[\\] ]", "" ).replace( ',', '-' );
+	}
+
+	/**
+	 * Parses a specification of track pairs such as <code>"1-2, 3-4"</code>
+	 * into the lists of track IDs of each kymograph.
+	 * 
+	 * @param spec
+	 *            the specification.
+	 * @return the track IDs of each kymograph.
+	 * @throws NumberFormatException
+	 *             if a track ID is not an integer, or if a kymograph has less
+	 *             than two track IDs.
+	 */
+	static List< List< Integer > > parsePairs( final String spec )
+	{
+		final List< List< Integer > > list = new ArrayList<>();
+		for ( final String group : spec.split( "[,;]" ) )
+		{
+			if ( group.trim().isEmpty() )
+				continue;
+
+			final List< Integer > ids = new ArrayList<>();
+			for ( final String id : group.split( "-" ) )
+				ids.add( Integer.valueOf( id.trim() ) );
+			if ( ids.size() < 2 )
+				throw new NumberFormatException( "'" + group.trim() + "' does not have two track IDs." );
+			list.add( ids );
+		}
+		return list;
+	}
+}
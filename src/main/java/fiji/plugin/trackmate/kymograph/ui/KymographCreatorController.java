@@ -21,20 +21,35 @@
  */
 package fiji.plugin.trackmate.kymograph.ui;
 
+import java.awt.Color;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.util.ArrayList;
 import java.util.List;
 
 import javax.swing.JDialog;
 import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
 
+import org.scijava.Cancelable;
+
+import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.ModelChangeEvent;
+import fiji.plugin.trackmate.ModelChangeListener;
 import fiji.plugin.trackmate.gui.Icons;
 import fiji.plugin.trackmate.kymograph.KymographCreationParams;
 import fiji.plugin.trackmate.kymograph.KymographCreator;
+import fiji.plugin.trackmate.kymograph.PathSamplingTable;
 import fiji.plugin.trackmate.kymograph.RegisteredImageCreator;
+import fiji.plugin.trackmate.kymograph.TrackFrameIndex;
+import fiji.plugin.trackmate.kymograph.TrackPairGeometry;
 import fiji.plugin.trackmate.kymograph.tracing.ui.KymographTracingController;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.ImageListener;
 import ij.ImagePlus;
 import ij.gui.Overlay;
+import ij.gui.PolygonRoi;
 import ij.gui.Roi;
 import ij.gui.RotatedRectRoi;
 import ij.measure.Calibration;
@@ -44,21 +59,90 @@ public class KymographCreatorController
 
 	private JDialog dialog;
 
-	private final KymographCreator kymographCreator;
-
 	private final Model model;
 
 	private final ImagePlus imp;
 
-	private final RegisteredImageCreator registeredImageCreateor;
+	/**
+	 * The index shared by the creators launched from this controller. Created
+	 * when needed, and closed once the dialog is closed and nothing uses it
+	 * anymore.
+	 */
+	private TrackFrameIndex index;
+
+	/**
+	 * Whether the dialog is shown.
+	 */
+	private boolean dialogOpen;
+
+	/**
+	 * The number of kymographs kept up to date with the model.
+	 */
+	private int nLiveKymographs;
+
+	private KymographCreatorPanel panel;
+
+	private TrackSelectorUI selectorUI;
+
+	/**
+	 * The geometry of the last track pair used, shared by the creators, the
+	 * overlay and the length plot. Discarded when the model changes.
+	 */
+	private volatile TrackPairGeometry geometry;
+
+	/**
+	 * Discards the geometry when the model changes. Only registered while the
+	 * dialog is shown.
+	 */
+	private final ModelChangeListener geometryListener = e -> {
+		if ( e.getEventID() == ModelChangeEvent.MODEL_MODIFIED )
+			geometry = null;
+	};
+
+	/**
+	 * The computation currently running, or <code>null</code>.
+	 */
+	private volatile Cancelable running;
 
 	public KymographCreatorController( final Model model, final ImagePlus imp )
 	{
 		this.model = model;
 		this.imp = imp;
-		final KymographCreationParams params = KymographCreationParams.create().get();
-		this.kymographCreator = new KymographCreator( model, imp, params );
-		this.registeredImageCreateor = new RegisteredImageCreator( model, imp, params );
+	}
+
+	/**
+	 * Returns the geometry of the line between the two tracks of the
+	 * specified parameters, computing it only if it is not cached.
+	 */
+	private TrackPairGeometry geometry( final KymographCreationParams params )
+	{
+		TrackPairGeometry g = geometry;
+		if ( g == null || !g.isFor( params.trackID1, params.trackID2 ) )
+		{
+			g = TrackPairGeometry.create( index(), imp, params.trackID1, params.trackID2 );
+			geometry = g;
+		}
+		return g;
+	}
+
+	private synchronized TrackFrameIndex index()
+	{
+		if ( index == null )
+			index = TrackFrameIndex.create( model );
+		return index;
+	}
+
+	/**
+	 * Closes the index if nothing uses it anymore: the dialog is closed, no
+	 * computation is running and no kymograph follows the model.
+	 */
+	private synchronized void releaseIndex()
+	{
+		if ( index == null || dialogOpen || running != null || nLiveKymographs > 0 )
+			return;
+		index.close();
+		index = null;
+		geometry = null;
 	}
 
 	public void showUI()
@@ -71,9 +155,8 @@ public class KymographCreatorController
 			dialog.setTitle( "TrackMate Kymograph" );
 			dialog.setIconImage( Icons.TRACKMATE_ICON.getImage() );
 
-			final TrackSelectorUI selectorUI = new TrackSelectorUI( model );
-			model.addModelChangeListener( selectorUI );
-			final KymographCreatorPanel panel = new KymographCreatorPanel( selectorUI );
+			selectorUI = new TrackSelectorUI( model );
+			panel = new KymographCreatorPanel( selectorUI );
 			dialog.getContentPane().add( panel );
 			dialog.pack();
 
@@ -81,14 +164,39 @@ public class KymographCreatorController
 			panel.btnLength.addActionListener( e -> plotKymograhPlength( panel.getKymographCreationParams() ) );
 			panel.btnClearOverlay.addActionListener( e -> clearOverlay() );
 			panel.btnImg.addActionListener( e -> createRegisteredImage( panel.getKymographCreationParams() ) );
+			panel.btnCancel.addActionListener( e -> cancel() );
+
+			dialog.addWindowListener( new WindowAdapter()
+			{
+				@Override
+				public void windowClosing( final WindowEvent e )
+				{
+					dialogOpen = false;
+					model.removeModelChangeListener( geometryListener );
+					model.removeModelChangeListener( selectorUI );
+					geometry = null;
+					releaseIndex();
+				}
+			} );
+		}
+		else if ( !dialogOpen )
+		{
+			// The model may have changed while the dialog was closed.
+			selectorUI.refresh();
 		}
+		if ( !dialogOpen )
+		{
+			model.addModelChangeListener( geometryListener );
+			model.addModelChangeListener( selectorUI );
+		}
+		dialogOpen = true;
 		dialog.setVisible( true );
 	}
 
 	private void plotKymograhPlength( final KymographCreationParams params )
 	{
 		final Calibration cal = imp.getCalibration();
-		final JFrame frame = KymographUtils.plotKymographLength( model, params, cal.getUnit(), cal.getTimeUnit() );
+		final JFrame frame = KymographUtils.plotKymographLength( geometry( params ), cal.getUnit(), cal.getTimeUnit() );
 		frame.setLocationRelativeTo( dialog );
 		frame.setVisible( true );
 	}
@@ -103,17 +211,22 @@ public class KymographCreatorController
 		}
 
 		clearOverlay();
+		final TrackPairGeometry geometry = geometry( params );
 		final int nFrames = imp.getNFrames();
 		for ( int tp = 0; tp < nFrames; tp++ )
 		{
-			final long[] coords1 = KymographUtils.getCoords( model, imp, tp, params.trackID1 );
-			if ( coords1 == null )
+			if ( params.isPath() )
+			{
+				addPathOverlay( overlay, params, tp );
 				continue;
+			}
 
-			final long[] coords2 = KymographUtils.getCoords( model, imp, tp, params.trackID2 );
-			if ( coords2 == null )
+			if ( !geometry.contains( tp ) )
 				continue;
 
+			final long[] coords1 = geometry.getCoords1( tp );
+			final long[] coords2 = geometry.getCoords2( tp );
+
 			final double x1 = coords1[ 0 ];
 			final double y1 = coords1[ 1 ];
 			final double x2 = coords2[ 0 ];
@@ -127,6 +240,35 @@ public class KymographCreatorController
 		imp.updateAndDraw();
 	}
 
+	private void addPathOverlay( final Overlay overlay, final KymographCreationParams params, final int tp )
+	{
+		final List< double[] > vertices = new ArrayList<>( params.trackIDs.size() );
+		for ( final Integer trackID : params.trackIDs )
+		{
+			final double[] position = KymographUtils.getPosition( index(), imp, tp, trackID );
+			if ( position == null )
+				return;
+			vertices.add( position );
+		}
+
+		// Draw the points that are actually sampled.
+		final double[] calibration = TMUtils.getSpatialCalibration( imp );
+		final double step = params.samplingStep > 0. ? params.samplingStep : calibration[ 0 ];
+		final PathSamplingTable table = PathSamplingTable.create( vertices, calibration, step, params.spline );
+		final float[] xs = new float[ table.size() ];
+		final float[] ys = new float[ table.size() ];
+		for ( int i = 0; i < xs.length; i++ )
+		{
+			xs[ i ] = ( float ) table.getX( i );
+			ys[ i ] = ( float ) table.getY( i );
+		}
+		final PolygonRoi roi = new PolygonRoi( xs, ys, Roi.POLYLINE );
+		roi.setStrokeWidth( params.thickness );
+		roi.setPosition( 1, imp.getNSlices() / 2 + 1, tp + 1 );
+		roi.setName( "TrackMate-Kymograph-tp" + ( tp + 1 ) );
+		overlay.add( roi );
+	}
+
 	private void clearOverlay()
 	{
 		final Overlay overlay = imp.getOverlay();
@@ -148,40 +290,176 @@ public class KymographCreatorController
 		imp.updateAndDraw();
 	}
 
+	private void cancel()
+	{
+		final Cancelable cancelable = running;
+		if ( cancelable != null )
+			cancelable.cancel( "User pressed the cancel button." );
+	}
+
+	/**
+	 * Runs the specified computation in a separate thread, with the progress
+	 * bar and the cancel button of the panel active while it runs.
+	 */
+	private void launch( final Cancelable cancelable, final Runnable task )
+	{
+		running = cancelable;
+		panel.setRunning( true );
+		new Thread( "TrackMate kymograph thread" )
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					task.run();
+				}
+				finally
+				{
+					running = null;
+					SwingUtilities.invokeLater( () -> {
+						panel.setRunning( false );
+						releaseIndex();
+					} );
+				}
+			}
+		}.start();
+	}
+
 	private void createKymograph( final KymographCreationParams params )
 	{
 		model.getLogger().log( "Generating kymograph with the following parameters: " + params.toString() );
-		kymographCreator.setParams( params );
+		final KymographCreator kymographCreator = new KymographCreator( index(), imp, params );
+		kymographCreator.setLogger( new ProgressLogger() );
+		kymographCreator.setGeometry( geometry( params ) );
+		launch( kymographCreator, () -> createKymograph( kymographCreator, params ) );
+	}
+
+	private void createKymograph( final KymographCreator kymographCreator, final KymographCreationParams params )
+	{
 		if ( !kymographCreator.checkInput() || !kymographCreator.process() )
 		{
 			model.getLogger().error( kymographCreator.getErrorMessage() );
 			return;
 		}
+		SwingUtilities.invokeLater( () -> showKymograph( kymographCreator, params ) );
+	}
+
+	/**
+	 * Shows a kymograph that was created, with its overlay and tracing
+	 * controller. Called on the event dispatch thread.
+	 */
+	private void showKymograph( final KymographCreator kymographCreator, final KymographCreationParams params )
+	{
 		final ImagePlus out = kymographCreator.getResult();
 		out.show();
 
+		// Keep the kymograph up to date with model edits, until it is closed.
+		synchronized ( this )
+		{
+			nLiveKymographs++;
+		}
+		kymographCreator.setLive( true );
+		ImagePlus.addImageListener( new ImageListener()
+		{
+
+			@Override
+			public void imageOpened( final ImagePlus image )
+			{}
+
+			@Override
+			public void imageUpdated( final ImagePlus image )
+			{}
+
+			@Override
+			public void imageClosed( final ImagePlus image )
+			{
+				if ( image != out )
+					return;
+				kymographCreator.setLive( false );
+				ImagePlus.removeImageListener( this );
+				synchronized ( KymographCreatorController.this )
+				{
+					nLiveKymographs--;
+				}
+				releaseIndex();
+			}
+		} );
+
 		// Launch tracing controller.
 		new KymographTracingController( out );
 
 		addKymographOverlay( params );
 
-		model.getLogger().log( "\nDone.\n" );
+		model.getLogger().log( String.format( "\nDone in %.1f s.\n", kymographCreator.getProcessingTime() / 1000. ) );
 	}
 
 	private void createRegisteredImage( final KymographCreationParams params )
 	{
 		model.getLogger().log( "Generating registered image with the following parameters: " + params.toString() );
-		registeredImageCreateor.setParams( params );
-		if ( !registeredImageCreateor.checkInput() || !registeredImageCreateor.process() )
+		final RegisteredImageCreator registeredImageCreator = new RegisteredImageCreator( index(), imp, params );
+		registeredImageCreator.setLogger( new ProgressLogger() );
+		registeredImageCreator.setGeometry( geometry( params ) );
+		launch( registeredImageCreator, () -> createRegisteredImage( registeredImageCreator, params ) );
+	}
+
+	private void createRegisteredImage( final RegisteredImageCreator registeredImageCreator, final KymographCreationParams params )
+	{
+		if ( !registeredImageCreator.checkInput() || !registeredImageCreator.process() )
 		{
-			model.getLogger().error( registeredImageCreateor.getErrorMessage() );
+			model.getLogger().error( registeredImageCreator.getErrorMessage() );
 			return;
 		}
-		final ImagePlus out = registeredImageCreateor.getResult();
+		SwingUtilities.invokeLater( () -> showRegisteredImage( registeredImageCreator, params ) );
+	}
+
+	/**
+	 * Shows a registered image that was created, with its overlay. Called on
+	 * the event dispatch thread.
+	 */
+	private void showRegisteredImage( final RegisteredImageCreator registeredImageCreator, final KymographCreationParams params )
+	{
+		final ImagePlus out = registeredImageCreator.getResult();
 		out.show();
 
 		addKymographOverlay( params );
 
-		model.getLogger().log( "\nDone.\n" );
+		model.getLogger().log( String.format( "\nDone in %.1f s.\n", registeredImageCreator.getProcessingTime() / 1000. ) );
+	}
+
+	/**
+	 * Forwards messages to the logger of the model, and shows the progress in
+	 * the progress bar of the panel.
+	 */
+	private class ProgressLogger extends Logger
+	{
+
+		@Override
+		public void log( final String message, final Color color )
+		{
+			model.getLogger().log( message, color );
+		}
+
+		@Override
+		public void error( final String message )
+		{
+			model.getLogger().error( message );
+		}
+
+		@Override
+		public void setProgress( final double val )
+		{
+			final int percent = ( int ) Math.round( 100. * val );
+			SwingUtilities.invokeLater( () -> {
+				panel.progressBar.setValue( percent );
+				panel.progressBar.setString( percent == 0 ? "" : percent + " %" );
+			} );
+		}
+
+		@Override
+		public void setStatus( final String status )
+		{
+			model.getLogger().setStatus( status );
+		}
 	}
 }
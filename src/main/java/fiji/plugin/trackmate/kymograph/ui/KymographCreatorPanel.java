@@ -34,14 +34,20 @@ import javax.swing.JComboBox;
 import javax.swing.JFormattedTextField;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.SwingConstants;
 
 import fiji.plugin.trackmate.gui.Fonts;
 import fiji.plugin.trackmate.gui.GuiUtils;
 import fiji.plugin.trackmate.gui.Icons;
 import fiji.plugin.trackmate.kymograph.KymographAlignment;
+import fiji.plugin.trackmate.kymograph.KymographBandShape;
 import fiji.plugin.trackmate.kymograph.KymographCreationParams;
+import fiji.plugin.trackmate.kymograph.KymographInterpolation;
+import fiji.plugin.trackmate.kymograph.KymographOutputMode;
 import fiji.plugin.trackmate.kymograph.KymographProjectionMethod;
+import fiji.plugin.trackmate.kymograph.KymographSamplingMethod;
+import fiji.plugin.trackmate.kymograph.KymographSlabAxis;
 
 public class KymographCreatorPanel extends JPanel
 {
@@ -56,16 +62,38 @@ public class KymographCreatorPanel extends JPanel
 
 	final JButton btnImg;
 
+	final JProgressBar progressBar;
+
+	final JButton btnCancel;
+
 	private final JComboBox< Integer > cmbboxTrack1;
 
 	private final JComboBox< Integer > cmbboxTrack2;
 
 	private final JFormattedTextField ftfThickness;
 
+	private final JComboBox< KymographBandShape > cmbboxBandShape;
+
+	private final JFormattedTextField ftfBandDepth;
+
 	private final JComboBox< KymographProjectionMethod > cmbboxProjection;
 
+	private final JFormattedTextField ftfPercentile;
+
 	private final JComboBox< KymographAlignment > cmbboxAlignment;
 
+	private final JComboBox< KymographSamplingMethod > cmbboxSampling;
+
+	private final JFormattedTextField ftfStep;
+
+	private final JComboBox< KymographOutputMode > cmbboxOutput;
+
+	private final JComboBox< KymographInterpolation > cmbboxInterpolation;
+
+	private final JComboBox< KymographSlabAxis > cmbboxSlabAxis;
+
+	private final JFormattedTextField ftfSlabDepth;
+
 
 	public KymographCreatorPanel( final TrackSelectorUI trackSelectorUI )
 	{
@@ -76,9 +104,9 @@ public class KymographCreatorPanel extends JPanel
 
 		final GridBagLayout gridBagLayout = new GridBagLayout();
 		gridBagLayout.columnWidths = new int[] { 0, 0, 0 };
-		gridBagLayout.rowHeights = new int[] { 36, 0, 0, 0, 0, 0, 0, 0 };
+		gridBagLayout.rowHeights = new int[] { 36, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
 		gridBagLayout.columnWeights = new double[] { 1.0, 1.0, Double.MIN_VALUE };
-		gridBagLayout.rowWeights = new double[] { 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 1.0, Double.MIN_VALUE };
+		gridBagLayout.rowWeights = new double[] { 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 1.0, 0.0, Double.MIN_VALUE };
 		setLayout( gridBagLayout );
 
 		final JLabel lblTitle = new JLabel( "Kymograph creation" );
@@ -143,12 +171,49 @@ public class KymographCreatorPanel extends JPanel
 		gbcFtfThickness.gridy = 3;
 		add( ftfThickness, gbcFtfThickness );
 
+		final JLabel lblBandShape = new JLabel( "Band shape (3D)" );
+		final GridBagConstraints gbcLblBandShape = new GridBagConstraints();
+		gbcLblBandShape.anchor = GridBagConstraints.EAST;
+		gbcLblBandShape.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblBandShape.gridx = 0;
+		gbcLblBandShape.gridy = 4;
+		add( lblBandShape, gbcLblBandShape );
+
+		cmbboxBandShape = new JComboBox<>( new Vector<>( Arrays.asList( KymographBandShape.values() ) ) );
+		cmbboxBandShape.setSelectedItem( KymographCreationParams.create().get().bandShape );
+		final GridBagConstraints gbcCmbboxBandShape = new GridBagConstraints();
+		gbcCmbboxBandShape.insets = new Insets( 5, 5, 5, 0 );
+		gbcCmbboxBandShape.fill = GridBagConstraints.HORIZONTAL;
+		gbcCmbboxBandShape.gridx = 1;
+		gbcCmbboxBandShape.gridy = 4;
+		add( cmbboxBandShape, gbcCmbboxBandShape );
+
+		final JLabel lblBandDepth = new JLabel( "Band depth" );
+		final GridBagConstraints gbcLblBandDepth = new GridBagConstraints();
+		gbcLblBandDepth.anchor = GridBagConstraints.EAST;
+		gbcLblBandDepth.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblBandDepth.gridx = 0;
+		gbcLblBandDepth.gridy = 5;
+		add( lblBandDepth, gbcLblBandDepth );
+
+		ftfBandDepth = new JFormattedTextField( Integer.valueOf( KymographCreationParams.create().get().bandDepth ) );
+		ftfBandDepth.setHorizontalAlignment( SwingConstants.CENTER );
+		GuiUtils.selectAllOnFocus( ftfBandDepth );
+		final GridBagConstraints gbcFtfBandDepth = new GridBagConstraints();
+		gbcFtfBandDepth.insets = new Insets( 5, 5, 5, 0 );
+		gbcFtfBandDepth.fill = GridBagConstraints.HORIZONTAL;
+		gbcFtfBandDepth.gridx = 1;
+		gbcFtfBandDepth.gridy = 5;
+		add( ftfBandDepth, gbcFtfBandDepth );
+		ftfBandDepth.setEnabled( cmbboxBandShape.getSelectedItem() == KymographBandShape.RECTANGLE );
+		cmbboxBandShape.addActionListener( e -> ftfBandDepth.setEnabled( cmbboxBandShape.getSelectedItem() == KymographBandShape.RECTANGLE ) );
+
 		final JLabel lblProjectionMethod = new JLabel( "Projection method" );
 		final GridBagConstraints gbcLblProjectionMethod = new GridBagConstraints();
 		gbcLblProjectionMethod.anchor = GridBagConstraints.EAST;
 		gbcLblProjectionMethod.insets = new Insets( 5, 5, 5, 5 );
 		gbcLblProjectionMethod.gridx = 0;
-		gbcLblProjectionMethod.gridy = 4;
+		gbcLblProjectionMethod.gridy = 6;
 		add( lblProjectionMethod, gbcLblProjectionMethod );
 
 		cmbboxProjection = new JComboBox<>( new Vector<>( Arrays.asList( KymographProjectionMethod.values() ) ) );
@@ -157,15 +222,35 @@ public class KymographCreatorPanel extends JPanel
 		gbcCmbboxProjection.insets = new Insets( 5, 5, 5, 0 );
 		gbcCmbboxProjection.fill = GridBagConstraints.HORIZONTAL;
 		gbcCmbboxProjection.gridx = 1;
-		gbcCmbboxProjection.gridy = 4;
+		gbcCmbboxProjection.gridy = 6;
 		add( cmbboxProjection, gbcCmbboxProjection );
 
+		final JLabel lblPercentile = new JLabel( "Percentile" );
+		final GridBagConstraints gbcLblPercentile = new GridBagConstraints();
+		gbcLblPercentile.anchor = GridBagConstraints.EAST;
+		gbcLblPercentile.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblPercentile.gridx = 0;
+		gbcLblPercentile.gridy = 7;
+		add( lblPercentile, gbcLblPercentile );
+
+		ftfPercentile = new JFormattedTextField( Double.valueOf( KymographCreationParams.create().get().percentile ) );
+		ftfPercentile.setHorizontalAlignment( SwingConstants.CENTER );
+		GuiUtils.selectAllOnFocus( ftfPercentile );
+		final GridBagConstraints gbcFtfPercentile = new GridBagConstraints();
+		gbcFtfPercentile.insets = new Insets( 5, 5, 5, 0 );
+		gbcFtfPercentile.fill = GridBagConstraints.HORIZONTAL;
+		gbcFtfPercentile.gridx = 1;
+		gbcFtfPercentile.gridy = 7;
+		add( ftfPercentile, gbcFtfPercentile );
+		ftfPercentile.setEnabled( cmbboxProjection.getSelectedItem() == KymographProjectionMethod.PERCENTILE );
+		cmbboxProjection.addActionListener( e -> ftfPercentile.setEnabled( cmbboxProjection.getSelectedItem() == KymographProjectionMethod.PERCENTILE ) );
+
 		final JLabel lblAlignment = new JLabel( "Alignment" );
 		final GridBagConstraints gbcLblAlignment = new GridBagConstraints();
 		gbcLblAlignment.anchor = GridBagConstraints.EAST;
 		gbcLblAlignment.insets = new Insets( 5, 5, 5, 5 );
 		gbcLblAlignment.gridx = 0;
-		gbcLblAlignment.gridy = 5;
+		gbcLblAlignment.gridy = 8;
 		add( lblAlignment, gbcLblAlignment );
 
 		cmbboxAlignment = new JComboBox<>( new Vector<>( Arrays.asList( KymographAlignment.values() ) ) );
@@ -174,16 +259,122 @@ public class KymographCreatorPanel extends JPanel
 		gbcCmbboxAlignment.insets = new Insets( 5, 5, 5, 0 );
 		gbcCmbboxAlignment.fill = GridBagConstraints.HORIZONTAL;
 		gbcCmbboxAlignment.gridx = 1;
-		gbcCmbboxAlignment.gridy = 5;
+		gbcCmbboxAlignment.gridy = 8;
 		add( cmbboxAlignment, gbcCmbboxAlignment );
 
+		final JLabel lblSampling = new JLabel( "Sampling" );
+		final GridBagConstraints gbcLblSampling = new GridBagConstraints();
+		gbcLblSampling.anchor = GridBagConstraints.EAST;
+		gbcLblSampling.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblSampling.gridx = 0;
+		gbcLblSampling.gridy = 9;
+		add( lblSampling, gbcLblSampling );
+
+		cmbboxSampling = new JComboBox<>( new Vector<>( Arrays.asList( KymographSamplingMethod.values() ) ) );
+		cmbboxSampling.setSelectedItem( KymographCreationParams.create().get().samplingMethod );
+		final GridBagConstraints gbcCmbboxSampling = new GridBagConstraints();
+		gbcCmbboxSampling.insets = new Insets( 5, 5, 5, 0 );
+		gbcCmbboxSampling.fill = GridBagConstraints.HORIZONTAL;
+		gbcCmbboxSampling.gridx = 1;
+		gbcCmbboxSampling.gridy = 9;
+		add( cmbboxSampling, gbcCmbboxSampling );
+
+		final JLabel lblStep = new JLabel( "Sampling step (0 for pixel size)" );
+		final GridBagConstraints gbcLblStep = new GridBagConstraints();
+		gbcLblStep.anchor = GridBagConstraints.EAST;
+		gbcLblStep.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblStep.gridx = 0;
+		gbcLblStep.gridy = 10;
+		add( lblStep, gbcLblStep );
+
+		ftfStep = new JFormattedTextField( Double.valueOf( 0. ) );
+		ftfStep.setHorizontalAlignment( SwingConstants.CENTER );
+		GuiUtils.selectAllOnFocus( ftfStep );
+		final GridBagConstraints gbcFtfStep = new GridBagConstraints();
+		gbcFtfStep.insets = new Insets( 5, 5, 5, 0 );
+		gbcFtfStep.fill = GridBagConstraints.HORIZONTAL;
+		gbcFtfStep.gridx = 1;
+		gbcFtfStep.gridy = 10;
+		add( ftfStep, gbcFtfStep );
+		ftfStep.setEnabled( cmbboxSampling.getSelectedItem() == KymographSamplingMethod.INTERPOLATED );
+		cmbboxSampling.addActionListener( e -> ftfStep.setEnabled( cmbboxSampling.getSelectedItem() == KymographSamplingMethod.INTERPOLATED ) );
+
+		final JLabel lblOutput = new JLabel( "Output" );
+		final GridBagConstraints gbcLblOutput = new GridBagConstraints();
+		gbcLblOutput.anchor = GridBagConstraints.EAST;
+		gbcLblOutput.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblOutput.gridx = 0;
+		gbcLblOutput.gridy = 11;
+		add( lblOutput, gbcLblOutput );
+
+		cmbboxOutput = new JComboBox<>( new Vector<>( Arrays.asList( KymographOutputMode.values() ) ) );
+		cmbboxOutput.setSelectedItem( KymographCreationParams.create().get().outputMode );
+		final GridBagConstraints gbcCmbboxOutput = new GridBagConstraints();
+		gbcCmbboxOutput.insets = new Insets( 5, 5, 5, 0 );
+		gbcCmbboxOutput.fill = GridBagConstraints.HORIZONTAL;
+		gbcCmbboxOutput.gridx = 1;
+		gbcCmbboxOutput.gridy = 11;
+		add( cmbboxOutput, gbcCmbboxOutput );
+
+		final JLabel lblInterpolation = new JLabel( "Registration interpolation" );
+		final GridBagConstraints gbcLblInterpolation = new GridBagConstraints();
+		gbcLblInterpolation.anchor = GridBagConstraints.EAST;
+		gbcLblInterpolation.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblInterpolation.gridx = 0;
+		gbcLblInterpolation.gridy = 12;
+		add( lblInterpolation, gbcLblInterpolation );
+
+		cmbboxInterpolation = new JComboBox<>( new Vector<>( Arrays.asList( KymographInterpolation.values() ) ) );
+		cmbboxInterpolation.setSelectedItem( KymographCreationParams.create().get().interpolation );
+		final GridBagConstraints gbcCmbboxInterpolation = new GridBagConstraints();
+		gbcCmbboxInterpolation.insets = new Insets( 5, 5, 5, 0 );
+		gbcCmbboxInterpolation.fill = GridBagConstraints.HORIZONTAL;
+		gbcCmbboxInterpolation.gridx = 1;
+		gbcCmbboxInterpolation.gridy = 12;
+		add( cmbboxInterpolation, gbcCmbboxInterpolation );
+
+		final JLabel lblSlabAxis = new JLabel( "Registration slab axis (3D)" );
+		final GridBagConstraints gbcLblSlabAxis = new GridBagConstraints();
+		gbcLblSlabAxis.anchor = GridBagConstraints.EAST;
+		gbcLblSlabAxis.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblSlabAxis.gridx = 0;
+		gbcLblSlabAxis.gridy = 13;
+		add( lblSlabAxis, gbcLblSlabAxis );
+
+		cmbboxSlabAxis = new JComboBox<>( new Vector<>( Arrays.asList( KymographSlabAxis.values() ) ) );
+		cmbboxSlabAxis.setSelectedItem( KymographCreationParams.create().get().slabAxis );
+		final GridBagConstraints gbcCmbboxSlabAxis = new GridBagConstraints();
+		gbcCmbboxSlabAxis.insets = new Insets( 5, 5, 5, 0 );
+		gbcCmbboxSlabAxis.fill = GridBagConstraints.HORIZONTAL;
+		gbcCmbboxSlabAxis.gridx = 1;
+		gbcCmbboxSlabAxis.gridy = 13;
+		add( cmbboxSlabAxis, gbcCmbboxSlabAxis );
+
+		final JLabel lblSlabDepth = new JLabel( "Registration slab depth (3D)" );
+		final GridBagConstraints gbcLblSlabDepth = new GridBagConstraints();
+		gbcLblSlabDepth.anchor = GridBagConstraints.EAST;
+		gbcLblSlabDepth.insets = new Insets( 5, 5, 5, 5 );
+		gbcLblSlabDepth.gridx = 0;
+		gbcLblSlabDepth.gridy = 14;
+		add( lblSlabDepth, gbcLblSlabDepth );
+
+		ftfSlabDepth = new JFormattedTextField( Integer.valueOf( KymographCreationParams.create().get().slabDepth ) );
+		ftfSlabDepth.setHorizontalAlignment( SwingConstants.CENTER );
+		GuiUtils.selectAllOnFocus( ftfSlabDepth );
+		final GridBagConstraints gbcFtfSlabDepth = new GridBagConstraints();
+		gbcFtfSlabDepth.insets = new Insets( 5, 5, 5, 0 );
+		gbcFtfSlabDepth.fill = GridBagConstraints.HORIZONTAL;
+		gbcFtfSlabDepth.gridx = 1;
+		gbcFtfSlabDepth.gridy = 14;
+		add( ftfSlabDepth, gbcFtfSlabDepth );
+
 		final JPanel panelButtons = new JPanel();
 		final GridBagConstraints gbc_panelButtons = new GridBagConstraints();
 		gbc_panelButtons.anchor = GridBagConstraints.SOUTH;
 		gbc_panelButtons.gridwidth = 2;
 		gbc_panelButtons.fill = GridBagConstraints.HORIZONTAL;
 		gbc_panelButtons.gridx = 0;
-		gbc_panelButtons.gridy = 6;
+		gbc_panelButtons.gridy = 15;
 		add( panelButtons, gbc_panelButtons );
 		panelButtons.setLayout( new BoxLayout( panelButtons, BoxLayout.X_AXIS ) );
 
@@ -200,6 +391,46 @@ public class KymographCreatorPanel extends JPanel
 		panelButtons.add( btnCreate );
 		panelButtons.add( Box.createHorizontalStrut( 5 ) );
 		panelButtons.add( btnImg );
+
+		final JPanel panelProgress = new JPanel();
+		final GridBagConstraints gbcPanelProgress = new GridBagConstraints();
+		gbcPanelProgress.insets = new Insets( 5, 0, 0, 0 );
+		gbcPanelProgress.gridwidth = 2;
+		gbcPanelProgress.fill = GridBagConstraints.HORIZONTAL;
+		gbcPanelProgress.gridx = 0;
+		gbcPanelProgress.gridy = 16;
+		add( panelProgress, gbcPanelProgress );
+		panelProgress.setLayout( new BoxLayout( panelProgress, BoxLayout.X_AXIS ) );
+
+		progressBar = new JProgressBar( 0, 100 );
+		progressBar.setStringPainted( true );
+		progressBar.setString( "" );
+		btnCancel = new JButton( "Cancel" );
+		btnCancel.setEnabled( false );
+
+		panelProgress.add( progressBar );
+		panelProgress.add( Box.createHorizontalStrut( 5 ) );
+		panelProgress.add( btnCancel );
+	}
+
+	/**
+	 * Enables the buttons that launch a computation, and disables the cancel
+	 * button, or the reverse while a computation is running.
+	 * 
+	 * @param running
+	 *            whether a computation is running.
+	 */
+	void setRunning( final boolean running )
+	{
+		btnCreate.setEnabled( !running );
+		btnImg.setEnabled( !running );
+		btnLength.setEnabled( !running );
+		btnCancel.setEnabled( running );
+		if ( !running )
+		{
+			progressBar.setValue( 0 );
+			progressBar.setString( "" );
+		}
 	}
 
 	public KymographCreationParams getKymographCreationParams()
@@ -208,8 +439,17 @@ public class KymographCreatorPanel extends JPanel
 				.trackID1( ( Integer ) cmbboxTrack1.getSelectedItem() )
 				.trackID2( ( Integer ) cmbboxTrack2.getSelectedItem() )
 				.thickness( ( ( Number ) ftfThickness.getValue() ).intValue() )
+				.bandShape( ( KymographBandShape ) cmbboxBandShape.getSelectedItem() )
+				.bandDepth( ( ( Number ) ftfBandDepth.getValue() ).intValue() )
 				.projectionMethod( ( KymographProjectionMethod ) cmbboxProjection.getSelectedItem() )
+				.percentile( ( ( Number ) ftfPercentile.getValue() ).doubleValue() )
 				.alignment( ( KymographAlignment ) cmbboxAlignment.getSelectedItem() )
+				.samplingMethod( ( KymographSamplingMethod ) cmbboxSampling.getSelectedItem() )
+				.samplingStep( ( ( Number ) ftfStep.getValue() ).doubleValue() )
+				.interpolation( ( KymographInterpolation ) cmbboxInterpolation.getSelectedItem() )
+				.slabAxis( ( KymographSlabAxis ) cmbboxSlabAxis.getSelectedItem() )
+				.slabDepth( ( ( Number ) ftfSlabDepth.getValue() ).intValue() )
+				.outputMode( ( KymographOutputMode ) cmbboxOutput.getSelectedItem() )
 				.get();
 	}
 }
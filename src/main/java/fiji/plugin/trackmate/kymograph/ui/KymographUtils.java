@@ -27,7 +27,6 @@ import static fiji.plugin.trackmate.gui.Fonts.SMALL_FONT;
 import java.awt.BasicStroke;
 import java.awt.BorderLayout;
 import java.awt.Color;
-import java.util.Optional;
 import java.util.Set;
 
 import javax.swing.JFrame;
@@ -52,6 +51,8 @@ import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.gui.GuiUtils;
 import fiji.plugin.trackmate.gui.Icons;
 import fiji.plugin.trackmate.kymograph.KymographCreationParams;
+import fiji.plugin.trackmate.kymograph.TrackFrameIndex;
+import fiji.plugin.trackmate.kymograph.TrackPairGeometry;
 import fiji.plugin.trackmate.util.ExportableChartPanel;
 import fiji.plugin.trackmate.util.TMUtils;
 import fiji.plugin.trackmate.visualization.GlasbeyLut;
@@ -69,44 +70,31 @@ public class KymographUtils
 {
 
 	public static final JFrame plotKymographLength( final Model model, final KymographCreationParams params, final String spaceUnits, final String timeUnits )
+	{
+		return plotKymographLength( new TrackFrameIndex( model ), params, spaceUnits, timeUnits );
+	}
+
+	public static final JFrame plotKymographLength( final TrackFrameIndex index, final KymographCreationParams params, final String spaceUnits, final String timeUnits )
+	{
+		// Only physical lengths and times are plotted, they do not depend on the pixel size.
+		final TrackPairGeometry geometry = TrackPairGeometry.create( index, new double[] { 1., 1. }, params.trackID1, params.trackID2 );
+		return plotKymographLength( geometry, spaceUnits, timeUnits );
+	}
+
+	public static final JFrame plotKymographLength( final TrackPairGeometry geometry, final String spaceUnits, final String timeUnits )
 	{
 		/*
 		 * Collect data.
 		 */
 
-		final int[] minmax = getMinMaxTimePoints( model, params.trackID1, params.trackID1 );
-		final int nFrames = minmax[ 1 ] - minmax[ 0 ] + 1;
-
+		final int nFrames = geometry.getLastFrame() - geometry.getFirstFrame() + 1;
 		final double[] length = new double[ nFrames ];
 		final double[] time = new double[ nFrames ];
-
 		for ( int i = 0; i < nFrames; i++ )
 		{
-			final int tp = i + minmax[ 0 ];
-
-			final Set< Spot > spots1 = model.getTrackModel().trackSpots( params.trackID1 );
-			final Optional< Spot > opt1 = spots1.stream().filter( s -> s.getFeature( Spot.FRAME ).intValue() == tp ).findFirst();
-
-			final Set< Spot > spots2 = model.getTrackModel().trackSpots( params.trackID2 );
-			final Optional< Spot > opt2 = spots2.stream().filter( s -> s.getFeature( Spot.FRAME ).intValue() == tp ).findFirst();
-
-			if ( !opt1.isPresent() || !opt2.isPresent() )
-			{
-				length[ i ] = Double.NaN;
-				if ( opt1.isPresent() )
-					time[ i ] = opt1.get().getFeature( Spot.POSITION_T );
-				else if ( opt2.isPresent() )
-					time[ i ] = opt2.get().getFeature( Spot.POSITION_T );
-				else
-					time[ i ] = Double.NaN;
-			}
-			else
-			{
-				final Spot s1 = opt1.get();
-				final Spot s2 = opt2.get();
-				length[ i ] = Math.sqrt( s1.squareDistanceTo( s2 ) );
-				time[ i ] = s1.getFeature( Spot.POSITION_T );
-			}
+			final int tp = i + geometry.getFirstFrame();
+			length[ i ] = geometry.getLength( tp );
+			time[ i ] = geometry.getTime( tp );
 		}
 
 		/*
@@ -300,20 +288,42 @@ public class KymographUtils
 		final int min1 = spots1.stream().mapToInt( s -> s.getFeature( Spot.FRAME ).intValue() ).min().getAsInt();
 		final int max1 = spots1.stream().mapToInt( s -> s.getFeature( Spot.FRAME ).intValue() ).max().getAsInt();
 
-		final Set< Spot > spots2 = model.getTrackModel().trackSpots( trackID1 );
+		final Set< Spot > spots2 = model.getTrackModel().trackSpots( trackID2 );
 		final int min2 = spots2.stream().mapToInt( s -> s.getFeature( Spot.FRAME ).intValue() ).min().getAsInt();
 		final int max2 = spots2.stream().mapToInt( s -> s.getFeature( Spot.FRAME ).intValue() ).max().getAsInt();
 
 		return new int[] { Math.max( min1, min2 ), Math.min( max1, max2 ) };
 	}
 
+	/**
+	 * Returns the min and max timpoints of the spots common to the two tracks
+	 * specified by their id, read from a {@link TrackFrameIndex}.
+	 * 
+	 * @param index
+	 *            the index of the tracks.
+	 * @param trackID1
+	 *            the id of the first track.
+	 * @param trackID2
+	 *            the id of the second track.
+	 * @return a new <code>int[]</code> array with min and max time-point.
+	 */
+	public static final int[] getMinMaxTimePoints( final TrackFrameIndex index, final Integer trackID1, final Integer trackID2 )
+	{
+		final int min1 = index.getMinFrame( trackID1 );
+		final int max1 = index.getMaxFrame( trackID1 );
+		final int min2 = index.getMinFrame( trackID2 );
+		final int max2 = index.getMaxFrame( trackID2 );
+		return new int[] { Math.max( min1, min2 ), Math.min( max1, max2 ) };
+	}
+
 	/**
 	 * Returns <code>null</code> if the specified track does not have a spot for
 	 * the specified time-point. Otherwise, returns the pixel coordinate of the
-	 * spot.
+	 * spot. The spot is looked up in the specified {@link TrackFrameIndex},
+	 * which should be reused across calls.
 	 * 
-	 * @param model
-	 *            the model to read the track from.
+	 * @param index
+	 *            the index to read the track from.
 	 * @param imp
 	 *            the image to get the calibration and the dimensionality from.
 	 * @param tp
@@ -322,14 +332,12 @@ public class KymographUtils
 	 *            the track ID.
 	 * @return a new <code>int[]</code> array with 3 elements (x, y, z).
 	 */
-	public static final long[] getCoords( final Model model, final ImagePlus imp, final int tp, final Integer trackID )
+	public static final long[] getCoords( final TrackFrameIndex index, final ImagePlus imp, final int tp, final Integer trackID )
 	{
-		final Set< Spot > spots = model.getTrackModel().trackSpots( trackID );
-		final Optional< Spot > opt = spots.stream().filter( s -> s.getFeature( Spot.FRAME ).intValue() == tp ).findFirst();
-		if ( !opt.isPresent() )
+		final Spot spot = index.getSpot( trackID, tp );
+		if ( spot == null )
 			return null;
 
-		final Spot spot = opt.get();
 		final double[] calibration = TMUtils.getSpatialCalibration( imp );
 		final long[] coords = new long[ imp.getNSlices() > 1 ? 3 : 2 ];
 		for ( int d = 0; d < coords.length; d++ )
@@ -338,6 +346,36 @@ public class KymographUtils
 		return coords;
 	}
 
+	/**
+	 * Returns <code>null</code> if the specified track does not have a spot for
+	 * the specified time-point. Otherwise, returns the position of the spot in
+	 * pixel coordinates, not rounded.
+	 * 
+	 * @param index
+	 *            the index to read the track from.
+	 * @param imp
+	 *            the image to get the calibration and the dimensionality from.
+	 * @param tp
+	 *            the time-point (0 based).
+	 * @param trackID
+	 *            the track ID.
+	 * @return a new <code>double[]</code> array with 2 or 3 elements (x, y,
+	 *         z).
+	 */
+	public static final double[] getPosition( final TrackFrameIndex index, final ImagePlus imp, final int tp, final Integer trackID )
+	{
+		final Spot spot = index.getSpot( trackID, tp );
+		if ( spot == null )
+			return null;
+
+		final double[] calibration = TMUtils.getSpatialCalibration( imp );
+		final double[] position = new double[ imp.getNSlices() > 1 ? 3 : 2 ];
+		for ( int d = 0; d < position.length; d++ )
+			position[ d ] = spot.getDoublePosition( d ) / calibration[ d ];
+
+		return position;
+	}
+
 	private KymographUtils()
 	{}
 }
@@ -98,9 +98,16 @@ public class TrackSelectorUI implements ModelChangeListener
 		if ( event.getEventID() == ModelChangeEvent.MODEL_MODIFIED
 				|| event.getEventID() == ModelChangeEvent.TRACKS_COMPUTED
 				|| event.getEventID() == ModelChangeEvent.TRACKS_VISIBILITY_CHANGED )
-		{
-			for ( final JComboBox< Integer > cmbbox : uiObjs.keySet() )
-				cmbbox.setModel( createComboBoxModel( model ) );
-		}
+			refresh();
+	}
+
+	/**
+	 * Updates the track lists of the combo boxes created by this instance
+	 * with the tracks of the model.
+	 */
+	public void refresh()
+	{
+		for ( final JComboBox< Integer > cmbbox : uiObjs.keySet() )
+			cmbbox.setModel( createComboBoxModel( model ) );
 	}
 }
@@ -0,0 +1,80 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.io.TmXmlReader;
+import ij.ImageJ;
+import ij.ImagePlus;
+
+public class KymographBatchCreatorTestDrive
+{
+
+	public static void main( final String[] args )
+	{
+		ImageJ.main( args );
+		final String filePath = "../TrackMate/samples/MAX_Merged.xml";
+
+		final TmXmlReader reader = new TmXmlReader( new File( filePath ) );
+		if ( !reader.isReadingOk() )
+		{
+			System.err.println( reader.getErrorMessage() );
+			return;
+		}
+
+		final Model model = reader.getModel();
+		final ImagePlus imp = reader.readImage();
+
+		/*
+		 * One kymograph for every pair of visible tracks.
+		 */
+
+		final List< Integer > trackIDs = new ArrayList<>( model.getTrackModel().trackIDs( true ) );
+		final List< KymographCreationParams > paramsList = new ArrayList<>();
+		for ( int i = 0; i < trackIDs.size(); i++ )
+			for ( int j = i + 1; j < trackIDs.size(); j++ )
+				paramsList.add( KymographCreationParams.create()
+						.trackID1( trackIDs.get( i ) )
+						.trackID2( trackIDs.get( j ) )
+						.thickness( 5 )
+						.alignment( KymographAlignment.CENTER )
+						.projectionMethod( KymographProjectionMethod.MEAN )
+						.get() );
+
+		final KymographBatchCreator creator = new KymographBatchCreator( new TrackFrameIndex( model ), imp, paramsList );
+		final long start = System.currentTimeMillis();
+		if ( !creator.checkInput() || !creator.process() )
+		{
+			System.out.println( creator.getErrorMessage() );
+			return;
+		}
+		final long end = System.currentTimeMillis();
+		System.out.println( "Created " + paramsList.size() + " kymographs in " + ( end - start ) + " ms." );
+
+		for ( final ImagePlus out : creator.getResult() )
+			out.show();
+	}
+}
@@ -65,7 +65,7 @@ public class KymographCreatorTestDrive
 				.alignment( KymographAlignment.FIRST )
 				.projectionMethod( KymographProjectionMethod.MIP )
 				.get();
-		final KymographCreator creator = new KymographCreator( model, imp, params1 );
+		final KymographCreator creator = new KymographCreator( new TrackFrameIndex( model ), imp, params1 );
 		if ( !creator.checkInput() || !creator.process() )
 		{
 			System.out.println( creator.getErrorMessage() );
@@ -0,0 +1,196 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.function.DoubleUnaryOperator;
+
+import org.junit.Test;
+
+/**
+ * Checks the weight tables of {@link KymographInterpolation} against the
+ * kernels evaluated directly.
+ */
+public class KymographInterpolationTest
+{
+
+	private static final double EPSILON = 1e-12;
+
+	@Test
+	public void testSize()
+	{
+		for ( final KymographInterpolation interpolation : KymographInterpolation.values() )
+			assertEquals( ( KymographInterpolation.PHASES + 1 ) * 2 * interpolation.radius(), interpolation.weights().length );
+		assertEquals( 1, KymographInterpolation.LINEAR.radius() );
+		assertEquals( 2, KymographInterpolation.BICUBIC.radius() );
+		assertEquals( 3, KymographInterpolation.LANCZOS3.radius() );
+	}
+
+	@Test
+	public void testLinear()
+	{
+		final double[] weights = KymographInterpolation.LINEAR.weights();
+		for ( int p = 0; p <= KymographInterpolation.PHASES; p++ )
+		{
+			final double frac = ( double ) p / KymographInterpolation.PHASES;
+			assertEquals( 1. - frac, weights[ 2 * p ], EPSILON );
+			assertEquals( frac, weights[ 2 * p + 1 ], EPSILON );
+		}
+	}
+
+	@Test
+	public void testKeys()
+	{
+		check( KymographInterpolation.BICUBIC, x -> {
+			// Keys cubic convolution with a = -0.5, already normalized.
+			final double t = Math.abs( x );
+			if ( t <= 1. )
+				return 1.5 * t * t * t - 2.5 * t * t + 1.;
+			if ( t < 2. )
+				return -0.5 * t * t * t + 2.5 * t * t - 4. * t + 2.;
+			return 0.;
+		} );
+	}
+
+	@Test
+	public void testLanczos()
+	{
+		check( KymographInterpolation.LANCZOS3, x -> sinc( x ) * sinc( x / 3. ) );
+	}
+
+	@Test
+	public void testPartitionOfUnity()
+	{
+		for ( final KymographInterpolation interpolation : KymographInterpolation.values() )
+		{
+			final int taps = 2 * interpolation.radius();
+			final double[] weights = interpolation.weights();
+			for ( int p = 0; p <= KymographInterpolation.PHASES; p++ )
+			{
+				double sum = 0.;
+				for ( int k = 0; k < taps; k++ )
+					sum += weights[ p * taps + k ];
+				assertEquals( interpolation + ", phase " + p, 1., sum, EPSILON );
+			}
+		}
+	}
+
+	@Test
+	public void testOnPixels()
+	{
+		// On a pixel, and on the next one, only this pixel contributes.
+		for ( final KymographInterpolation interpolation : KymographInterpolation.values() )
+		{
+			final int taps = 2 * interpolation.radius();
+			final double[] weights = interpolation.weights();
+			final int last = KymographInterpolation.PHASES * taps;
+			for ( int k = 0; k < taps; k++ )
+			{
+				assertEquals( interpolation + ", tap " + k, k == interpolation.radius() - 1 ? 1. : 0., weights[ k ], EPSILON );
+				assertEquals( interpolation + ", tap " + k, k == interpolation.radius() ? 1. : 0., weights[ last + k ], EPSILON );
+			}
+		}
+	}
+
+	@Test
+	public void testSymmetry()
+	{
+		for ( final KymographInterpolation interpolation : KymographInterpolation.values() )
+		{
+			final int taps = 2 * interpolation.radius();
+			final double[] weights = interpolation.weights();
+			for ( int p = 0; p <= KymographInterpolation.PHASES; p++ )
+			{
+				final int q = KymographInterpolation.PHASES - p;
+				for ( int k = 0; k < taps; k++ )
+					assertEquals( interpolation + ", phase " + p + ", tap " + k, weights[ p * taps + k ], weights[ q * taps + taps - 1 - k ], EPSILON );
+			}
+		}
+	}
+
+	@Test
+	public void testLinearRamp()
+	{
+		// Linear and cubic interpolation reproduce linear ramps.
+		for ( final KymographInterpolation interpolation : new KymographInterpolation[] { KymographInterpolation.LINEAR, KymographInterpolation.BICUBIC } )
+		{
+			final int radius = interpolation.radius();
+			final int taps = 2 * radius;
+			final double[] weights = interpolation.weights();
+			for ( int p = 0; p <= KymographInterpolation.PHASES; p++ )
+			{
+				double value = 0.;
+				for ( int k = 0; k < taps; k++ )
+					value += weights[ p * taps + k ] * ( k - radius + 1 );
+				assertEquals( interpolation + ", phase " + p, ( double ) p / KymographInterpolation.PHASES, value, EPSILON );
+			}
+		}
+	}
+
+	@Test
+	public void testPhase()
+	{
+		assertEquals( 0, KymographInterpolation.phase( 0. ) );
+		assertEquals( KymographInterpolation.PHASES / 2, KymographInterpolation.phase( 0.5 ) );
+		assertEquals( KymographInterpolation.PHASES, KymographInterpolation.phase( 1. ) );
+		for ( int p = 0; p <= KymographInterpolation.PHASES; p++ )
+		{
+			final double frac = ( double ) p / KymographInterpolation.PHASES;
+			assertEquals( p, KymographInterpolation.phase( frac ) );
+			// Rounded to the nearest phase.
+			assertEquals( p, KymographInterpolation.phase( Math.max( 0., frac - 0.4 / KymographInterpolation.PHASES ) ) );
+			assertEquals( p, KymographInterpolation.phase( Math.min( 1., frac + 0.4 / KymographInterpolation.PHASES ) ) );
+		}
+	}
+
+	/**
+	 * Compares the weights of each phase with the kernel evaluated at the
+	 * distance of each tap, normalized to sum to 1.
+	 */
+	private static void check( final KymographInterpolation interpolation, final DoubleUnaryOperator kernel )
+	{
+		final int radius = interpolation.radius();
+		final int taps = 2 * radius;
+		final double[] weights = interpolation.weights();
+		final double[] expected = new double[ taps ];
+		for ( int p = 0; p <= KymographInterpolation.PHASES; p++ )
+		{
+			final double frac = ( double ) p / KymographInterpolation.PHASES;
+			double sum = 0.;
+			for ( int k = 0; k < taps; k++ )
+			{
+				expected[ k ] = kernel.applyAsDouble( k - radius + 1 - frac );
+				sum += expected[ k ];
+			}
+			for ( int k = 0; k < taps; k++ )
+				assertEquals( interpolation + ", phase " + p + ", tap " + k, expected[ k ] / sum, weights[ p * taps + k ], EPSILON );
+		}
+	}
+
+	private static double sinc( final double x )
+	{
+		if ( x == 0. )
+			return 1.;
+		return Math.sin( Math.PI * x ) / ( Math.PI * x );
+	}
+}
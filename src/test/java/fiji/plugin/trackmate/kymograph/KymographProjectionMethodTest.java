@@ -0,0 +1,211 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.ToDoubleFunction;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.kymograph.KymographProjectionMethod.Accumulator;
+
+/**
+ * Checks the projections of {@link KymographProjectionMethod} against
+ * brute-force references. The number of values per position covers the
+ * sorting networks (up to 16 values), the selection algorithm, the 8-bit
+ * histograms (more than 16 values) and the sampled slots (more than 1024
+ * values).
+ */
+public class KymographProjectionMethodTest
+{
+
+	private static final double EPSILON = 1e-9;
+
+	private static final double[] PERCENTILES = new double[] { 0., 10., 25., 50., 62.5, 90., 99., 100. };
+
+	@Test
+	public void testMax()
+	{
+		check( KymographProjectionMethod.MIP, 50., 0, values -> Arrays.stream( values ).max().getAsDouble() );
+	}
+
+	@Test
+	public void testMean()
+	{
+		check( KymographProjectionMethod.MEAN, 50., 0, values -> Arrays.stream( values ).average().getAsDouble() );
+	}
+
+	@Test
+	public void testSum()
+	{
+		check( KymographProjectionMethod.SUM, 50., 0, values -> Arrays.stream( values ).sum() );
+	}
+
+	@Test
+	public void testMedian()
+	{
+		check( KymographProjectionMethod.MEDIAN, 50., 0, values -> percentile( values, 50. ) );
+		check( KymographProjectionMethod.MEDIAN, 50., 16, values -> percentile( values, 50. ) );
+	}
+
+	@Test
+	public void testPercentile()
+	{
+		for ( final double p : PERCENTILES )
+			check( KymographProjectionMethod.PERCENTILE, p, 0, values -> percentile( values, p ) );
+	}
+
+	@Test
+	public void testHistogramPercentile()
+	{
+		// 8-bit values are rounded and clamped to the 0-255 range.
+		for ( final double p : PERCENTILES )
+			check( KymographProjectionMethod.PERCENTILE, p, 8, values -> {
+				final double[] bins = new double[ values.length ];
+				for ( int k = 0; k < values.length; k++ )
+					bins[ k ] = Math.max( 0, Math.min( 255, Math.round( values[ k ] ) ) );
+				return percentile( bins, p );
+			} );
+	}
+
+	@Test
+	public void testSampledPercentile()
+	{
+		// More values than the rank accumulators keep: estimated from a
+		// sample, the same way for the same values.
+		final Random random = new Random( 3L );
+		final double[] values = new double[ 20000 ];
+		for ( int k = 0; k < values.length; k++ )
+			values[ k ] = random.nextDouble();
+		for ( final double p : new double[] { 10., 50., 90. } )
+		{
+			final double estimate = project( KymographProjectionMethod.PERCENTILE, p, 16, values );
+			assertEquals( percentile( values, p ), estimate, 0.06 );
+			assertEquals( estimate, project( KymographProjectionMethod.PERCENTILE, p, 16, values ), 0. );
+		}
+	}
+
+	@Test
+	public void testPercentileOutOfRange()
+	{
+		final Random random = new Random( 1L );
+		final double[] values = randomValues( random, 23, false );
+		assertEquals( percentile( values, 0. ), project( KymographProjectionMethod.PERCENTILE, -5., 0, values ), EPSILON );
+		assertEquals( percentile( values, 100. ), project( KymographProjectionMethod.PERCENTILE, 150., 0, values ), EPSILON );
+	}
+
+	@Test
+	public void testEmptyPositions()
+	{
+		for ( final KymographProjectionMethod method : KymographProjectionMethod.values() )
+		{
+			for ( final int bitDepth : new int[] { 0, 8 } )
+			{
+				final Accumulator accumulator = method.accumulator( 4, 50., bitDepth );
+				accumulator.reset( 3 );
+				accumulator.accumulate( 1, 7. );
+				// Outside of the line: ignored.
+				accumulator.accumulate( -1, 100. );
+				accumulator.accumulate( 3, 100. );
+				assertEquals( method.toString(), 0., accumulator.get( 0 ), 0. );
+				assertEquals( method.toString(), 7., accumulator.get( 1 ), 0. );
+				assertEquals( method.toString(), 0., accumulator.get( 2 ), 0. );
+			}
+		}
+	}
+
+	/**
+	 * Accumulates lines of random values with an increasing number of values
+	 * per position, into the same accumulator so that it is reset, grown and
+	 * deepened, and compares each position with the reference.
+	 */
+	private static void check( final KymographProjectionMethod method, final double percentile, final int bitDepth, final ToDoubleFunction< double[] > reference )
+	{
+		final Random random = new Random( 42L );
+		final Accumulator accumulator = method.accumulator( 4, percentile, bitDepth );
+		for ( int round = 0; round < 30; round++ )
+		{
+			final int length = 1 + random.nextInt( 12 );
+			final double[][] values = new double[ length ][];
+			for ( int i = 0; i < length; i++ )
+			{
+				final int n = 1 + random.nextInt( 2 + round * 2 );
+				values[ i ] = randomValues( random, n, bitDepth == 8 );
+			}
+
+			// Interleave the positions, like the rows of a stencil.
+			accumulator.reset( length );
+			final int max = Arrays.stream( values ).mapToInt( v -> v.length ).max().getAsInt();
+			for ( int k = 0; k < max; k++ )
+				for ( int i = 0; i < length; i++ )
+					if ( k < values[ i ].length )
+						accumulator.accumulate( i, values[ i ][ k ] );
+
+			assertEquals( length, accumulator.length() );
+			for ( int i = 0; i < length; i++ )
+				assertEquals( method + " of " + Arrays.toString( values[ i ] ), reference.applyAsDouble( values[ i ] ), accumulator.get( i ), EPSILON );
+		}
+	}
+
+	private static double project( final KymographProjectionMethod method, final double percentile, final int bitDepth, final double[] values )
+	{
+		final Accumulator accumulator = method.accumulator( 1, percentile, bitDepth );
+		accumulator.reset( 1 );
+		for ( final double value : values )
+			accumulator.accumulate( 0, value );
+		return accumulator.get( 0 );
+	}
+
+	/**
+	 * Returns random values with many ties, including negative and
+	 * fractional values unless they are 8-bit values.
+	 */
+	private static double[] randomValues( final Random random, final int n, final boolean eightBit )
+	{
+		final double[] values = new double[ n ];
+		for ( int k = 0; k < n; k++ )
+		{
+			if ( eightBit )
+				values[ k ] = random.nextInt( 4 ) == 0 ? random.nextInt( 5 ) : random.nextInt( 256 );
+			else
+				values[ k ] = random.nextInt( 4 ) == 0 ? random.nextInt( 5 ) : random.nextGaussian() * 100.;
+		}
+		return values;
+	}
+
+	/**
+	 * Returns the percentile of the values, linearly interpolated between the
+	 * two closest ranks of the sorted values.
+	 */
+	private static double percentile( final double[] values, final double percentile )
+	{
+		final double[] sorted = values.clone();
+		Arrays.sort( sorted );
+		final double pos = percentile / 100. * ( sorted.length - 1 );
+		final int lo = ( int ) Math.floor( pos );
+		final int hi = Math.min( sorted.length - 1, lo + 1 );
+		return sorted[ lo ] + ( pos - lo ) * ( sorted[ hi ] - sorted[ lo ] );
+	}
+}
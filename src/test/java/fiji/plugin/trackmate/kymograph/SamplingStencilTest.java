@@ -0,0 +1,377 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.kymograph.KymographProjectionMethod.Accumulator;
+
+/**
+ * Checks the pixels sampled by {@link SamplingStencil} against brute-force
+ * rasterisations of the band: each pixel of the band must be sampled exactly
+ * once, in the right column, and no pixel outside of the band is sampled.
+ */
+public class SamplingStencilTest
+{
+
+	private static final int WIDTH = 128;
+
+	private static final int HEIGHT = 128;
+
+	private static final int DEPTH = 64;
+
+	/**
+	 * Line vectors in all octants, along the axes and the diagonals.
+	 */
+	private static final long[][] DELTAS_2D = new long[][] {
+			{ 10, 0 }, { 0, 10 }, { -10, 0 }, { 0, -10 },
+			{ 7, 7 }, { -7, 7 }, { 7, -7 }, { -7, -7 },
+			{ 13, 5 }, { 5, 13 }, { -13, 5 }, { -5, -13 },
+			{ 6, 8 }, { 20, -3 }, { 1, 0 }, { 0, 0 } };
+
+	private static final long[][] DELTAS_3D = new long[][] {
+			{ 10, 0, 0 }, { 0, 0, 6 }, { 7, 7, 3 }, { -9, 4, -2 },
+			{ 3, -11, 5 }, { 2, 1, 8 } };
+
+	@Test
+	public void testThinLine()
+	{
+		for ( final long[] delta : DELTAS_2D )
+		{
+			for ( final int thickness : new int[] { 1, 2, 3 } )
+			{
+				final List< int[] > pixels = sample( SamplingStencil.create( delta, thickness, WIDTH ) );
+				final int n = ( int ) Math.max( Math.abs( delta[ 0 ] ), Math.abs( delta[ 1 ] ) );
+				assertEquals( "Number of pixels for " + str( delta ), n + 1, pixels.size() );
+				assertNoDuplicate( pixels, delta );
+
+				// One 8-connected pixel per column, from the first to the last point.
+				final int[][] byColumn = new int[ n + 1 ][];
+				for ( final int[] p : pixels )
+					byColumn[ p[ 3 ] ] = p;
+				assertEquals( 0, byColumn[ 0 ][ 0 ] );
+				assertEquals( 0, byColumn[ 0 ][ 1 ] );
+				assertEquals( delta[ 0 ], byColumn[ n ][ 0 ] );
+				assertEquals( delta[ 1 ], byColumn[ n ][ 1 ] );
+				for ( int i = 1; i <= n; i++ )
+				{
+					assertTrue( Math.abs( byColumn[ i ][ 0 ] - byColumn[ i - 1 ][ 0 ] ) <= 1 );
+					assertTrue( Math.abs( byColumn[ i ][ 1 ] - byColumn[ i - 1 ][ 1 ] ) <= 1 );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testThickLine()
+	{
+		for ( final long[] delta : DELTAS_2D )
+		{
+			if ( delta[ 0 ] == 0 && delta[ 1 ] == 0 )
+				continue;
+
+			for ( final int thickness : new int[] { 4, 5, 7, 10, 15 } )
+			{
+				final List< int[] > pixels = sample( SamplingStencil.create( delta, thickness, WIDTH ) );
+				assertNoDuplicate( pixels, delta );
+
+				/*
+				 * Brute force: the pixels whose coordinate along the dominant
+				 * axis is within the line, and whose distance to the line is
+				 * at most half the thickness. The column is the coordinate
+				 * along the dominant axis.
+				 */
+
+				final int a = Math.abs( delta[ 0 ] ) >= Math.abs( delta[ 1 ] ) ? 0 : 1;
+				final int n = ( int ) Math.abs( delta[ a ] );
+				final int sign = delta[ a ] > 0 ? 1 : -1;
+				final double l = Math.sqrt( delta[ 0 ] * delta[ 0 ] + delta[ 1 ] * delta[ 1 ] );
+				final double nx = -delta[ 1 ] / l;
+				final double ny = delta[ 0 ] / l;
+				final double halfWidth = Math.max( 0, thickness / 2 - 1 ) + 0.5;
+
+				final Map< String, Integer > sampled = new HashMap<>();
+				for ( final int[] p : pixels )
+					sampled.put( p[ 0 ] + "," + p[ 1 ], p[ 3 ] );
+
+				final int r = n + thickness;
+				for ( int y = -r; y <= r; y++ )
+				{
+					for ( int x = -r; x <= r; x++ )
+					{
+						final int along = ( a == 0 ? x : y ) * sign;
+						final double distance = Math.abs( x * nx + y * ny );
+						final String key = x + "," + y;
+						final String msg = "Pixel " + key + " of " + str( delta ) + " with thickness " + thickness;
+						if ( along < 0 || along > n || distance > halfWidth + 1e-9 )
+						{
+							assertFalse( msg + " should not be sampled.", sampled.containsKey( key ) );
+						}
+						else if ( distance < halfWidth - 1e-9 )
+						{
+							assertTrue( msg + " should be sampled.", sampled.containsKey( key ) );
+							assertEquals( msg, along, sampled.get( key ).intValue() );
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testCylinder()
+	{
+		testBand( KymographBandShape.CYLINDER );
+	}
+
+	@Test
+	public void testRectangle()
+	{
+		testBand( KymographBandShape.RECTANGLE );
+	}
+
+	private static void testBand( final KymographBandShape shape )
+	{
+		for ( final long[] delta : DELTAS_3D )
+		{
+			for ( final double zScale : new double[] { 1., 2.5 } )
+			{
+				for ( final int thickness : new int[] { 4, 7 } )
+				{
+					final int depth = 6;
+					final List< int[] > pixels = sample( SamplingStencil.create( delta, shape, thickness, depth, zScale, WIDTH ) );
+					assertNoDuplicate( pixels, delta );
+					final Set< String > sampled = new HashSet<>();
+					for ( final int[] p : pixels )
+						sampled.add( p[ 0 ] + "," + p[ 1 ] + "," + p[ 2 ] + ":" + p[ 3 ] );
+
+					/*
+					 * Brute force: the voxels of the band in the whole
+					 * neighborhood of the line, in the column of their
+					 * orthogonal projection on the line.
+					 */
+
+					final Set< String > expected = new HashSet<>();
+					final int n = ( int ) Math.max( Math.abs( delta[ 0 ] ), Math.max( Math.abs( delta[ 1 ] ), Math.abs( delta[ 2 ] ) ) );
+					final double dx = delta[ 0 ];
+					final double dy = delta[ 1 ];
+					final double dz = delta[ 2 ] * zScale;
+					final double d2 = dx * dx + dy * dy + dz * dz;
+					final double[] axes = SamplingStencil.crossSectionAxes( dx, dy, dz );
+					final double halfWidth = Math.max( 0, thickness / 2 - 1 ) + 0.5;
+					final double halfDepth = shape == KymographBandShape.RECTANGLE ? Math.max( 0, depth / 2 - 1 ) + 0.5 : halfWidth;
+					final int r = n + thickness + depth;
+					for ( int z = -r; z <= r; z++ )
+					{
+						final double pz = z * zScale;
+						for ( int y = -r; y <= r; y++ )
+						{
+							for ( int x = -r; x <= r; x++ )
+							{
+								final double u = d2 == 0. ? 0. : ( x * dx + y * dy + pz * dz ) / d2;
+								final long column = Math.round( u * n );
+								if ( column < 0 || column > n )
+									continue;
+
+								final double vx = x - u * dx;
+								final double vy = y - u * dy;
+								final double vz = pz - u * dz;
+								final boolean inside;
+								if ( shape == KymographBandShape.RECTANGLE )
+								{
+									final double s1 = vx * axes[ 0 ] + vy * axes[ 1 ] + vz * axes[ 2 ];
+									final double s2 = vx * axes[ 3 ] + vy * axes[ 4 ] + vz * axes[ 5 ];
+									inside = Math.abs( s1 ) <= halfWidth && Math.abs( s2 ) <= halfDepth;
+								}
+								else
+								{
+									inside = vx * vx + vy * vy + vz * vz <= halfWidth * halfWidth;
+								}
+								if ( inside )
+									expected.add( x + "," + y + "," + z + ":" + column );
+							}
+						}
+					}
+					assertEquals( "Voxels of " + shape + " band along " + str( delta ) + ", zScale " + zScale + ", thickness " + thickness, expected, sampled );
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testPlaneOrder()
+	{
+		final List< int[] > pixels = sample( SamplingStencil.create( new long[] { 3, -11, 5 }, KymographBandShape.CYLINDER, 7, 1, 1., WIDTH ) );
+		for ( int k = 1; k < pixels.size(); k++ )
+			assertTrue( "Voxels must be ordered by Z-slice.", pixels.get( k )[ 2 ] >= pixels.get( k - 1 )[ 2 ] );
+	}
+
+	@Test
+	public void testBorder()
+	{
+		// Partly outside of the image: same pixels, minus the ones outside.
+		final long[] delta = new long[] { 13, 5 };
+		final SamplingStencil stencil = SamplingStencil.create( delta, 7, WIDTH );
+		final List< int[] > inside = sample( stencil );
+		final List< int[] > border = sample( stencil, new long[] { 2, 1, 0 } );
+		int expected = 0;
+		for ( final int[] p : inside )
+			if ( p[ 0 ] + 2 >= 0 && p[ 1 ] + 1 >= 0 )
+				expected++;
+		assertTrue( expected < inside.size() );
+		assertEquals( expected, border.size() );
+		assertNoDuplicate( border, delta );
+	}
+
+	@Test
+	public void testZRange()
+	{
+		// Restricted to some Z-planes: same pixels, minus the ones in the
+		// other planes.
+		final SamplingStencil stencil = SamplingStencil.create( new long[] { 10, 0, 0 }, KymographBandShape.CYLINDER, 7, 1, 1., WIDTH );
+		final long[] from = new long[] { WIDTH / 2, HEIGHT / 2, DEPTH / 2 };
+		final List< int[] > all = sample( stencil, from, new IndexSampler() );
+		final List< int[] > restricted = sample( stencil, from, new IndexSampler( DEPTH / 2, DEPTH / 2 + 1 ) );
+		int expected = 0;
+		for ( final int[] p : all )
+			if ( p[ 2 ] >= 0 && p[ 2 ] <= 1 )
+				expected++;
+		assertTrue( expected < all.size() );
+		assertEquals( expected, restricted.size() );
+	}
+
+	private static void assertNoDuplicate( final List< int[] > pixels, final long[] delta )
+	{
+		final Set< String > seen = new HashSet<>();
+		for ( final int[] p : pixels )
+			assertTrue( "Pixel " + p[ 0 ] + "," + p[ 1 ] + "," + p[ 2 ] + " sampled twice for " + str( delta ), seen.add( p[ 0 ] + "," + p[ 1 ] + "," + p[ 2 ] ) );
+	}
+
+	/**
+	 * Returns the pixels sampled by the stencil positioned in the middle of
+	 * the image, as (x, y, z, column) offsets from the first point.
+	 */
+	private static List< int[] > sample( final SamplingStencil stencil )
+	{
+		return sample( stencil, new long[] { WIDTH / 2, HEIGHT / 2, DEPTH / 2 } );
+	}
+
+	private static List< int[] > sample( final SamplingStencil stencil, final long[] from )
+	{
+		return sample( stencil, from, new IndexSampler() );
+	}
+
+	private static List< int[] > sample( final SamplingStencil stencil, final long[] from, final SliceSampler sampler )
+	{
+		final RecordingAccumulator accumulator = new RecordingAccumulator();
+		accumulator.reset( stencil.length() );
+		stencil.accumulate( new SliceSampler[] { sampler }, from, new Accumulator[] { accumulator } );
+		final List< int[] > pixels = new ArrayList<>( accumulator.pixels.size() );
+		for ( final int[] p : accumulator.pixels )
+			pixels.add( new int[] { p[ 0 ] - ( int ) from[ 0 ], p[ 1 ] - ( int ) from[ 1 ], p[ 2 ] - ( int ) from[ 2 ], p[ 3 ] } );
+		return pixels;
+	}
+
+	private static String str( final long[] delta )
+	{
+		return Arrays.toString( delta );
+	}
+
+	/**
+	 * Returns 1 + the index of each pixel in the image, so that the sampled
+	 * pixels can be told from their values.
+	 */
+	private static final class IndexSampler extends SliceSampler
+	{
+
+		private IndexSampler()
+		{
+			this( 0, DEPTH - 1 );
+		}
+
+		private IndexSampler( final int zmin, final int zmax )
+		{
+			super( WIDTH, HEIGHT, DEPTH, zmin, zmax );
+		}
+
+		@Override
+		public double getAt( final int z, final int index )
+		{
+			return 1. + index + ( double ) z * WIDTH * HEIGHT;
+		}
+	}
+
+	/**
+	 * Records the position and column of the pixels it receives, ignoring
+	 * the pixels outside of the image.
+	 */
+	private static final class RecordingAccumulator implements Accumulator
+	{
+
+		private final List< int[] > pixels = new ArrayList<>();
+
+		private int length;
+
+		@Override
+		public void reset( final int length )
+		{
+			this.length = length;
+			pixels.clear();
+		}
+
+		@Override
+		public int length()
+		{
+			return length;
+		}
+
+		@Override
+		public void accumulate( final int i, final double value )
+		{
+			if ( i < 0 || i >= length || value == 0. )
+				return;
+			final long index = ( long ) value - 1;
+			final int x = ( int ) ( index % WIDTH );
+			final int y = ( int ) ( ( index / WIDTH ) % HEIGHT );
+			final int z = ( int ) ( index / ( WIDTH * HEIGHT ) );
+			pixels.add( new int[] { x, y, z, i } );
+		}
+
+		@Override
+		public double get( final int i )
+		{
+			return 0.;
+		}
+	}
+}
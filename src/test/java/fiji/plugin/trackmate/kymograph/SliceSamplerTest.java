@@ -0,0 +1,203 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the bilinear and trilinear interpolation of {@link SliceSampler},
+ * used to sample lines at a fixed step, against a brute-force reference.
+ */
+public class SliceSamplerTest
+{
+
+	private static final double EPSILON = 1e-9;
+
+	@Test
+	public void testBilinear()
+	{
+		final ArraySampler sampler = new ArraySampler( 17, 11, 1, 0, 0, new Random( 1L ) );
+		final Random random = new Random( 2L );
+		for ( int k = 0; k < 10000; k++ )
+		{
+			// Also outside of the slice, where pixels count as 0.
+			final double x = -2. + random.nextDouble() * 21.;
+			final double y = -2. + random.nextDouble() * 15.;
+			assertEquals( "At " + x + ", " + y, sampler.reference( x, y, 0. ), sampler.interpolate( x, y, 0. ), EPSILON );
+		}
+	}
+
+	@Test
+	public void testOnPixels()
+	{
+		final ArraySampler sampler = new ArraySampler( 9, 7, 3, 0, 2, new Random( 3L ) );
+		for ( int z = 0; z < 3; z++ )
+			for ( int y = 0; y < 7; y++ )
+				for ( int x = 0; x < 9; x++ )
+					assertEquals( sampler.get( x, y, z ), sampler.interpolate( x, y, z ), EPSILON );
+	}
+
+	@Test
+	public void testTrilinear()
+	{
+		final ArraySampler sampler = new ArraySampler( 13, 9, 6, 0, 5, new Random( 4L ) );
+		final Random random = new Random( 5L );
+		for ( int k = 0; k < 10000; k++ )
+		{
+			final double x = -2. + random.nextDouble() * 17.;
+			final double y = -2. + random.nextDouble() * 13.;
+			final double z = -2. + random.nextDouble() * 10.;
+			assertEquals( "At " + x + ", " + y + ", " + z, sampler.reference( x, y, z ), sampler.interpolate( x, y, z ), EPSILON );
+		}
+	}
+
+	@Test
+	public void testZRange()
+	{
+		// Only planes 2 to 3 are read; the others count as 0.
+		final ArraySampler sampler = new ArraySampler( 13, 9, 6, 2, 3, new Random( 6L ) );
+		final Random random = new Random( 7L );
+		for ( int k = 0; k < 10000; k++ )
+		{
+			final double x = -1. + random.nextDouble() * 15.;
+			final double y = -1. + random.nextDouble() * 11.;
+			final double z = -1. + random.nextDouble() * 8.;
+			assertEquals( "At " + x + ", " + y + ", " + z, sampler.reference( x, y, z ), sampler.interpolate( x, y, z ), EPSILON );
+		}
+	}
+
+	@Test
+	public void testSeveralSamplers()
+	{
+		final SliceSampler[] samplers = new SliceSampler[] {
+				new ArraySampler( 13, 9, 6, 0, 5, new Random( 8L ) ),
+				new ArraySampler( 13, 9, 6, 0, 5, new Random( 9L ) ),
+				new ArraySampler( 13, 9, 6, 0, 5, new Random( 10L ) ) };
+		final double[] values = new double[ samplers.length ];
+		final Random random = new Random( 11L );
+		for ( int k = 0; k < 1000; k++ )
+		{
+			final double x = -2. + random.nextDouble() * 17.;
+			final double y = -2. + random.nextDouble() * 13.;
+			final double z = random.nextInt( 4 ) == 0 ? random.nextInt( 6 ) : -2. + random.nextDouble() * 10.;
+			SliceSampler.interpolate( samplers, x, y, z, values );
+			for ( int c = 0; c < samplers.length; c++ )
+				assertEquals( samplers[ c ].interpolate( x, y, z ), values[ c ], EPSILON );
+		}
+	}
+
+	@Test
+	public void testFixedStep()
+	{
+		// Interpolation reproduces linear ramps exactly inside the slice.
+		final int width = 64;
+		final int height = 48;
+		final double[] pixels = new double[ width * height ];
+		for ( int y = 0; y < height; y++ )
+			for ( int x = 0; x < width; x++ )
+				pixels[ x + y * width ] = 3. * x - 2. * y + 7.;
+		final ArraySampler sampler = new ArraySampler( width, height, 1, 0, 0, new double[][] { pixels } );
+
+		// Samples along a line at a constant step are equally spaced.
+		final double x0 = 5.3;
+		final double y0 = 40.7;
+		final double angle = 0.61;
+		final double step = 0.37;
+		final double sx = step * Math.cos( angle );
+		final double sy = -step * Math.sin( angle );
+		for ( int i = 0; i < 80; i++ )
+		{
+			final double x = x0 + i * sx;
+			final double y = y0 + i * sy;
+			assertEquals( 3. * x0 - 2. * y0 + 7. + i * ( 3. * sx - 2. * sy ), sampler.interpolate( x, y, 0. ), 1e-6 );
+		}
+	}
+
+	/**
+	 * A sampler on arrays of doubles, with a brute-force interpolation.
+	 */
+	private static final class ArraySampler extends SliceSampler
+	{
+
+		private final double[][] planes;
+
+		private ArraySampler( final int width, final int height, final int depth, final int zmin, final int zmax, final Random random )
+		{
+			this( width, height, depth, zmin, zmax, randomPlanes( width * height, depth, random ) );
+		}
+
+		private ArraySampler( final int width, final int height, final int depth, final int zmin, final int zmax, final double[][] planes )
+		{
+			super( width, height, depth, zmin, zmax );
+			this.planes = planes;
+		}
+
+		private static double[][] randomPlanes( final int size, final int depth, final Random random )
+		{
+			final double[][] planes = new double[ depth ][ size ];
+			for ( final double[] plane : planes )
+				for ( int i = 0; i < size; i++ )
+					plane[ i ] = random.nextInt( 256 );
+			return planes;
+		}
+
+		@Override
+		public double getAt( final int z, final int index )
+		{
+			return planes[ z ][ index ];
+		}
+
+		/**
+		 * Sums the neighbor pixels weighted by their distance along each
+		 * axis, pixels outside of the slice or of the Z-range counting as 0.
+		 */
+		private double reference( final double x, final double y, final double z )
+		{
+			final int nz = depth == 1 ? 1 : 2;
+			final int z0 = depth == 1 ? 0 : ( int ) Math.floor( z );
+			double sum = 0.;
+			for ( int dz = 0; dz < nz; dz++ )
+			{
+				final double wz = depth == 1 ? 1. : 1. - Math.abs( z - ( z0 + dz ) );
+				for ( int dy = 0; dy < 2; dy++ )
+				{
+					final int yi = ( int ) Math.floor( y ) + dy;
+					final double wy = 1. - Math.abs( y - yi );
+					for ( int dx = 0; dx < 2; dx++ )
+					{
+						final int xi = ( int ) Math.floor( x ) + dx;
+						final double wx = 1. - Math.abs( x - xi );
+						final int zi = z0 + dz;
+						final boolean inside = xi >= 0 && xi < width && yi >= 0 && yi < height && zi >= zmin && zi <= zmax;
+						if ( inside )
+							sum += wx * wy * wz * planes[ zi ][ xi + yi * width ];
+					}
+				}
+			}
+			return sum;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2021 - 2022 The Institut Pasteur.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+package fiji.plugin.trackmate.kymograph.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class KymographBatchCommandTest
+{
+
+	@Test
+	public void testPairs()
+	{
+		final List< List< Integer > > pairs = KymographBatchCommand.parsePairs( "1-2, 3-4" );
+		assertEquals( Arrays.asList( Arrays.asList( 1, 2 ), Arrays.asList( 3, 4 ) ), pairs );
+	}
+
+	@Test
+	public void testPaths()
+	{
+		final List< List< Integer > > pairs = KymographBatchCommand.parsePairs( " 0 - 5 - 12 ; 7-3" );
+		assertEquals( Arrays.asList( Arrays.asList( 0, 5, 12 ), Arrays.asList( 7, 3 ) ), pairs );
+	}
+
+	@Test
+	public void testEmptyGroups()
+	{
+		assertTrue( KymographBatchCommand.parsePairs( "" ).isEmpty() );
+		assertTrue( KymographBatchCommand.parsePairs( " , ;" ).isEmpty() );
+		assertEquals( Arrays.asList( Arrays.asList( 1, 2 ) ), KymographBatchCommand.parsePairs( "1-2,," ) );
+	}
+
+	@Test( expected = NumberFormatException.class )
+	public void testSingleTrack()
+	{
+		KymographBatchCommand.parsePairs( "1-2, 3" );
+	}
+
+	@Test( expected = NumberFormatException.class )
+	public void testNotAnInteger()
+	{
+		KymographBatchCommand.parsePairs( "1-a" );
+	}
+
+	@Test( expected = NumberFormatException.class )
+	public void testMissingID()
+	{
+		KymographBatchCommand.parsePairs( "1--2" );
+	}
+}